@@ -13,7 +13,9 @@ import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -29,12 +31,45 @@ public class CommandLineInterface {
   /** Logger. */
   private static final Log log = LogFactory.getLog(CommandLineInterface.class);
 
+  /** How long a file has to be left alone before it is validated in watch mode, in milliseconds. */
+  private static final long WATCH_DEBOUNCE_MILLIS = 250;
+
   public void run(String[] args) {
 
     Options options = new Options();
     options.addOption("r", "reasoner", false, "Flag to indicate if the reasoner should be used in validation");
     options.addOption("t", "terminologyServer", true, "The URL of an external terminology server to use for " +
       "validation");
+    options.addOption("j", "threads", true, "The number of pedigree files to validate in parallel (defaults to " +
+      "the number of processors)");
+    options.addOption("m", "heapBudget", true, "The heap budget for concurrent validations, in MB (defaults to " +
+      "most of the free heap)");
+    options.addOption(null, "shards", true, "The number of shards the corpus is split into");
+    options.addOption(null, "shard", true, "The shard validated by this process, between 0 and shards - 1");
+    options.addOption(null, "reportDir", true, "The folder where validation reports are written");
+    options.addOption(null, "coordinate", false, "Flag to launch one local worker process per shard and merge their " +
+      "reports");
+    options.addOption(null, "merge", false, "Flag to merge the reports of all the shards in the report folder " +
+      "without validating");
+    options.addOption(null, "journal", true, "A journal of completed validations. Files that already passed " +
+      "validation with the same content and settings are skipped, so interrupted runs can be resumed. When the " +
+      "corpus is split into shards, each shard uses its own journal with the shard appended to this name. NDJSON " +
+      "files are not journaled and are always validated in full");
+    options.addOption("w", "watch", false, "Flag to keep running and validate pedigree files as soon as they are " +
+      "created or modified in the folder");
+    options.addOption(null, "allMessages", false, "Flag to report every validation message instead of grouping " +
+      "similar messages");
+    options.addOption(null, "slowThreshold", true, "Dump a flight recording and the bundle of every pedigree that " +
+      "takes longer than this to validate, in ms");
+    options.addOption(null, "dumpDir", true, "The folder where slow validations are dumped (defaults to " +
+      "slow-validations)");
+    options.addOption(Option.builder()
+      .longOpt("igPackage")
+      .hasArg()
+      .argName("version=path")
+      .desc("Registers another version of the Pedigree IG package. It is only loaded when a pedigree refers to " +
+        "this version in its profile. Can be repeated")
+      .build());
     options.addOption(new Option("help", "Print this message"));
 
     CommandLineParser parser = new DefaultParser();
@@ -42,6 +77,44 @@ public class CommandLineInterface {
     try {
       // Parse the command line arguments
       CommandLine line = parser.parse(options, args);
+
+      int shards = 1;
+      int shard = 0;
+      try {
+        if (line.hasOption("shards")) {
+          shards = Integer.parseInt(line.getOptionValue("shards"));
+        }
+        if (line.hasOption("shard")) {
+          shard = Integer.parseInt(line.getOptionValue("shard"));
+        }
+      } catch (NumberFormatException e) {
+        printError("Invalid number: " + e.getLocalizedMessage());
+        printUsage(options);
+        exit(0);
+      }
+      if (shards < 1 || shard < 0 || shard >= shards) {
+        printError("Invalid shard " + shard + " of " + shards);
+        exit(0);
+      }
+      if (line.hasOption("watch") && (shards > 1 || line.hasOption("coordinate") || line.hasOption("merge"))) {
+        // Watching never finishes, so a sharded run would never write complete reports to merge
+        printError("A folder cannot be watched when the corpus is split into shards");
+        printUsage(options);
+        exit(0);
+      }
+      File reportDir = line.hasOption("reportDir") ? new File(line.getOptionValue("reportDir")) : null;
+      if ((line.hasOption("coordinate") || line.hasOption("merge")) && reportDir == null) {
+        printError("A report folder is required to coordinate or merge shards");
+        printUsage(options);
+        exit(0);
+      }
+      ShardCoordinator coordinator = (reportDir != null) ? new ShardCoordinator(shards, reportDir) : null;
+
+      if (line.hasOption("merge")) {
+        mergeReports(coordinator, reportDir);
+        exit(0);
+      }
+
       if (line.getArgList().isEmpty()) {
         printError("No argument was supplied");
         printUsage(options);
@@ -55,17 +128,119 @@ public class CommandLineInterface {
         exit(0);
       }
 
+      if (line.hasOption("coordinate")) {
+        List<String> workerArgs = new ArrayList<>();
+        for (Option option : line.getOptions()) {
+          String name = option.getLongOpt();
+          if ("coordinate".equals(name) || "shards".equals(name) || "shard".equals(name)
+            || "reportDir".equals(name) || "threads".equals(name) || "heapBudget".equals(name)) {
+            continue;
+          }
+          workerArgs.add(name != null ? "--" + name : "-" + option.getOpt());
+          if (option.hasArg()) {
+            workerArgs.add(option.getValue());
+          }
+        }
+
+        // The workers share this machine, so the threads and heap budget are split between them
+        try {
+          int threads = line.hasOption("j") ? Integer.parseInt(line.getOptionValue("j"))
+            : Runtime.getRuntime().availableProcessors();
+          workerArgs.add("-j");
+          workerArgs.add(String.valueOf(Math.max(1, threads / shards)));
+          if (line.hasOption("m")) {
+            workerArgs.add("-m");
+            workerArgs.add(String.valueOf(Math.max(1, Long.parseLong(line.getOptionValue("m")) / shards)));
+          }
+        } catch (NumberFormatException e) {
+          printError("Invalid number: " + e.getLocalizedMessage());
+          printUsage(options);
+          exit(0);
+        }
+        workerArgs.add(baseFolderOrFile.getAbsolutePath());
+        try {
+          coordinator.runLocalWorkers(workerArgs);
+        } catch (IOException | InterruptedException e) {
+          printError("There was a problem running the workers: " + e.getLocalizedMessage());
+          exit(-1);
+        }
+        mergeReports(coordinator, reportDir);
+        exit(0);
+      }
+
+      boolean useReasoner = line.hasOption("r");
+      String terminologyServer = line.getOptionValue("t");
+      int threads = Runtime.getRuntime().availableProcessors();
+      long heapBudget = 0;
+      long slowThreshold = 0;
+      int maxMessageGroups = line.hasOption("allMessages") ? 0 : MessageAggregator.DEFAULT_MAX_GROUPS;
+      try {
+        if (line.hasOption("j")) {
+          threads = Integer.parseInt(line.getOptionValue("j"));
+        }
+        if (line.hasOption("m")) {
+          heapBudget = Long.parseLong(line.getOptionValue("m")) * 1024 * 1024;
+        }
+        if (line.hasOption("slowThreshold")) {
+          slowThreshold = Long.parseLong(line.getOptionValue("slowThreshold"));
+        }
+      } catch (NumberFormatException e) {
+        printError("Invalid number: " + e.getLocalizedMessage());
+        printUsage(options);
+        exit(0);
+      }
+
+      Map<String, String> igPackages = new LinkedHashMap<>();
+      if (line.hasOption("igPackage")) {
+        for (String value : line.getOptionValues("igPackage")) {
+          int idx = value.indexOf('=');
+          if (idx < 1 || idx == value.length() - 1) {
+            printError("Invalid IG package " + value + ", should be version=path");
+            printUsage(options);
+            exit(0);
+          }
+          igPackages.put(value.substring(0, idx), value.substring(idx + 1));
+        }
+      }
+
+      File dumpDir = new File(line.getOptionValue("dumpDir", "slow-validations"));
+
+      if (line.hasOption("watch")) {
+        if (!baseFolderOrFile.isDirectory()) {
+          printError("Only folders can be watched but " + baseFolderOrFile.getAbsolutePath() + " is a file");
+          exit(0);
+        }
+        printInfo("Watching folder " + baseFolderOrFile + (useReasoner ? " with" : " without") + " reasoner support"
+          + ((terminologyServer != null) ? " using terminology server " + terminologyServer : ""));
+        try (SlowValidationRecorder recorder = (slowThreshold > 0)
+               ? new SlowValidationRecorder(slowThreshold, dumpDir) : null;
+             ValidationScheduler scheduler = new ValidationScheduler(useReasoner, terminologyServer, threads,
+               heapBudget)) {
+          scheduler.setMaxMessageGroups(maxMessageGroups);
+          scheduler.setSlowValidationRecorder(recorder);
+          igPackages.forEach(scheduler::registerIgPackage);
+          new DirectoryWatcher(baseFolderOrFile, scheduler, WATCH_DEBOUNCE_MILLIS,
+            this::printValidationResult).run();
+        } catch (InterruptedException e) {
+          printInfo("Stopped watching folder " + baseFolderOrFile);
+        } catch (Throwable t) {
+          log.error("There was a problem watching folder " + baseFolderOrFile + ": " + t.getLocalizedMessage());
+          t.printStackTrace();
+        }
+        exit(0);
+      }
+
       List<File> jsonFiles = null;
       if (baseFolderOrFile.isFile()) {
         jsonFiles = new ArrayList<>();
         jsonFiles.add(baseFolderOrFile);
       } else {
-        // Get .json files
+        // Get .json and .ndjson files
         try (Stream<Path> walk = Files.walk(baseFolderOrFile.toPath())) {
           jsonFiles = walk
             .filter(p -> !Files.isDirectory(p))
             .map(Path::toFile)
-            .filter(f -> f.getName().endsWith(".json"))
+            .filter(f -> f.getName().endsWith(".json") || isNdjson(f))
             .collect(Collectors.toList());
         } catch (IOException e) {
           printError("There was an I/O issue: " + e.getLocalizedMessage());
@@ -73,36 +248,76 @@ public class CommandLineInterface {
         }
       }
 
-      if (jsonFiles.isEmpty()) {
-        printError("There are no pedigree files to validate! Files should be in FHIR JSON format");
+      if (shards > 1) {
+        int total = jsonFiles.size();
+        jsonFiles = ShardCoordinator.selectShard(baseFolderOrFile, jsonFiles, shard, shards);
+        printInfo("Shard " + shard + " of " + shards + " contains " + jsonFiles.size() + " of " + total + " files");
+      }
+
+      // A shard with no files still writes an empty report so the shards can be merged
+      if (jsonFiles.isEmpty() && coordinator == null) {
+        printError("There are no pedigree files to validate! Files should be in FHIR JSON or NDJSON format");
         System.exit(0);
       }
 
-      try {
-        for (File jsonFile : jsonFiles) {
-          boolean useReasoner = line.hasOption("r");
-          String terminologyServer = line.getOptionValue("t");
-          printInfo("Validating pedigree file " + jsonFile + (useReasoner ? " with" : "without") + " reasoner support"
-            + ((terminologyServer != null) ? " using terminology server " + terminologyServer : ""));
-          ValidatorService service = new ValidatorService(useReasoner, terminologyServer);
-          ValidationResult vr = service.validate(jsonFile);
-          if (vr.isSuccessful()) {
-            printInfo("Validation was successful");
-            for(SingleValidationMessage msg : vr.getMessages()) {
-              if (msg.getSeverity().equals(ResultSeverityEnum.WARNING)) {
-                printValidationMessage(msg);
-              }
-            }
-          } else {
-            for(SingleValidationMessage msg : vr.getMessages()) {
-              printValidationMessage(msg);
+      printInfo("Validating " + jsonFiles.size() + " pedigree file(s)" + (useReasoner ? " with" : " without")
+        + " reasoner support" + ((terminologyServer != null) ? " using terminology server " + terminologyServer : ""));
+      String fingerprint = CompletionJournal.fingerprint(String.valueOf(useReasoner), terminologyServer,
+        igPackages.toString());
+      File journalFile = null;
+      if (line.hasOption("journal")) {
+        journalFile = new File(line.getOptionValue("journal"));
+        if (shards > 1) {
+          journalFile = ShardCoordinator.getShardFile(journalFile, shard, shards);
+        }
+      }
+      try (SlowValidationRecorder recorder = (slowThreshold > 0)
+             ? new SlowValidationRecorder(slowThreshold, dumpDir) : null;
+           ShardReport report = (coordinator != null) ? new ShardReport(coordinator.getReportFile(shard)) : null;
+           CompletionJournal journal = (journalFile != null) ? new CompletionJournal(journalFile, fingerprint) : null;
+           ValidationScheduler scheduler = new ValidationScheduler(useReasoner, terminologyServer, threads,
+             heapBudget)) {
+        scheduler.setMaxMessageGroups(maxMessageGroups);
+        scheduler.setSlowValidationRecorder(recorder);
+        scheduler.setJournal(journal);
+        // Files that passed in a previous run are still reported, so merged reports cover the whole corpus
+        scheduler.setSkipHandler((f, warnings) -> {
+          if (report != null) {
+            try {
+              report.addPassed(f.getPath(), warnings);
+            } catch (IOException e) {
+              printError("Unable to write report entry for " + f.getPath() + ": " + e.getLocalizedMessage());
             }
           }
-        }
+        });
+        igPackages.forEach(scheduler::registerIgPackage);
+        for (File jsonFile : jsonFiles) {
+          if (isNdjson(jsonFile)) {
+            // Every line is validated and reported on its own. NDJSON files are never journaled, so a resumed run
+            // validates all their lines again
+            scheduler.submitNdjson(jsonFile, (name, vr) -> {
+              printValidationResult(name, vr);
+              addToReport(report, name, vr);
+            });
+            continue;
+          }
 
+          scheduler.submit(jsonFile, (f, vr) -> {
+            printValidationResult(f.getPath(), vr);
+            addToReport(report, f.getPath(), vr);
+          });
+        }
+        scheduler.awaitCompletion();
+        if (scheduler.getSkippedCount() > 0) {
+          printInfo("Skipped " + scheduler.getSkippedCount() + " file(s) that had already passed validation");
+        }
+        if (report != null) {
+          report.complete();
+        }
       } catch (Throwable t) {
         log.error("There was a problem validating the pedigree files: " + t.getLocalizedMessage());
         t.printStackTrace();
+        exit(-1);
       }
 
     } catch (ParseException exp) {
@@ -121,6 +336,47 @@ public class CommandLineInterface {
     writer.flush();
   }
 
+  private void mergeReports(ShardCoordinator coordinator, File reportDir) {
+    try {
+      ShardReport.Summary summary = coordinator.merge(new File(reportDir, "report.tsv"),
+        line -> printError("Unsuccessful validation: " + line));
+      printInfo(summary.toString());
+    } catch (IOException e) {
+      printError("There was a problem merging the reports: " + e.getLocalizedMessage());
+      exit(-1);
+    }
+  }
+
+  private static boolean isNdjson(File file) {
+    return file.getName().endsWith(".ndjson");
+  }
+
+  private void addToReport(ShardReport report, String name, ValidationResult vr) {
+    if (report != null) {
+      try {
+        report.add(name, vr);
+      } catch (IOException e) {
+        printError("Unable to write report entry for " + name + ": " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+  private synchronized void printValidationResult(String name, ValidationResult vr) {
+    if (vr.isSuccessful()) {
+      printInfo("Validation of pedigree " + name + " was successful");
+      for(SingleValidationMessage msg : vr.getMessages()) {
+        if (msg.getSeverity().equals(ResultSeverityEnum.WARNING)) {
+          printValidationMessage(msg);
+        }
+      }
+    } else {
+      printError("Validation of pedigree " + name + " failed");
+      for(SingleValidationMessage msg : vr.getMessages()) {
+        printValidationMessage(msg);
+      }
+    }
+  }
+
   private void printValidationMessage(SingleValidationMessage msg) {
     String s = msg.getMessage() + "[" + msg.getLocationLine() + "," + msg.getLocationCol() + "]";
     switch (msg.getSeverity()) {
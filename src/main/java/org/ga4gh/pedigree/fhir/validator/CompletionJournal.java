@@ -0,0 +1,232 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only journal of completed validations, used to resume batch runs. Each line records the content hash,
+ * the configuration fingerprint, the outcome, the number of warnings and the path of a validated file, separated by
+ * tabs. A file is skipped when it has already passed validation with the same content and configuration; files that
+ * failed, could not be validated or changed since are validated again. The number of warnings is kept so skipped
+ * files can still be reported.
+ *
+ * <p>Every entry is written with a single append to the journal file, so a crash loses at most the last, partially
+ * written, line. Partial lines are ignored when the journal is loaded. The journal is synced to disk periodically and
+ * when it is closed.
+ */
+public class CompletionJournal implements Closeable {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(CompletionJournal.class);
+
+  /** Number of appended entries between syncs to disk. */
+  private static final int SYNC_INTERVAL = 1000;
+
+  private final String fingerprint;
+  /** The files that passed validation, by path. Other outcomes are retried so there is no need to keep them. */
+  private final Map<String, Entry> passed = new HashMap<>();
+  private final FileChannel channel;
+  private int unsynced = 0;
+
+  /**
+   * Opens a journal, loading the entries it already contains.
+   *
+   * @param journalFile The journal file. It is created if it does not exist.
+   * @param fingerprint The fingerprint of the current validation configuration.
+   * @throws IOException If the journal cannot be read or opened for writing.
+   */
+  public CompletionJournal(File journalFile, String fingerprint) throws IOException {
+    this.fingerprint = fingerprint;
+    boolean terminated = true;
+    if (journalFile.exists()) {
+      terminated = load(journalFile);
+    }
+    this.channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.APPEND);
+    if (!terminated) {
+      // Terminate the partial line left by a crash so the next entry starts on its own line
+      channel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+    }
+    log.info("Loaded " + passed.size() + " completed files from journal " + journalFile);
+  }
+
+  /**
+   * Returns true if a file has already passed validation with the same content and configuration.
+   *
+   * @param file The file.
+   * @param contentHash The hash of the current content of the file, as returned by {@link #hash(File)}.
+   */
+  public synchronized boolean isComplete(File file, String contentHash) {
+    Entry entry = passed.get(key(file));
+    return entry != null
+      && entry.contentHash.equals(contentHash)
+      && entry.fingerprint.equals(fingerprint);
+  }
+
+  /**
+   * Returns the number of warnings recorded for a file that passed validation, or zero if it has not passed.
+   */
+  public synchronized long getWarnings(File file) {
+    Entry entry = passed.get(key(file));
+    return (entry != null) ? entry.warnings : 0;
+  }
+
+  /**
+   * Records the outcome of validating a file.
+   *
+   * @param file The file.
+   * @param contentHash The hash of the content of the file that was validated.
+   * @param outcome The outcome.
+   * @param warnings The number of warnings found.
+   * @throws IOException If the entry cannot be written.
+   */
+  public synchronized void record(File file, String contentHash, ValidationOutcome outcome, long warnings)
+    throws IOException {
+    String key = key(file);
+    String line = contentHash + "\t" + fingerprint + "\t" + outcome + "\t" + warnings + "\t" + key + "\n";
+    ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    update(key, contentHash, fingerprint, outcome, warnings);
+    if (++unsynced >= SYNC_INTERVAL) {
+      channel.force(false);
+      unsynced = 0;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.force(false);
+    channel.close();
+  }
+
+  /**
+   * Returns the SHA-256 hash of the content of a file, in hexadecimal.
+   */
+  public static String hash(File file) throws IOException {
+    MessageDigest md = newDigest();
+    byte[] buf = new byte[64 * 1024];
+    try (InputStream is = Files.newInputStream(file.toPath())) {
+      int read;
+      while ((read = is.read(buf)) != -1) {
+        md.update(buf, 0, read);
+      }
+    }
+    return toHex(md.digest());
+  }
+
+  /**
+   * Returns a fingerprint of the validation configuration, built from the settings that can change the outcome of a
+   * validation.
+   */
+  public static String fingerprint(String... settings) {
+    MessageDigest md = newDigest();
+    for (String setting : settings) {
+      md.update(String.valueOf(setting).getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+    }
+    return toHex(md.digest()).substring(0, 16);
+  }
+
+  /**
+   * Loads the entries in the journal. Returns false if the last line was not terminated, i.e. it was being written
+   * when the process crashed.
+   */
+  private boolean load(File journalFile) throws IOException {
+    boolean terminated = true;
+    long size = journalFile.length();
+    if (size > 0) {
+      try (FileChannel fc = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        fc.read(last, size - 1);
+        terminated = last.get(0) == '\n';
+      }
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+      String previous = null;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (previous != null) {
+          loadEntry(previous);
+        }
+        previous = line;
+      }
+      if (previous != null && terminated) {
+        loadEntry(previous);
+      }
+    }
+    return terminated;
+  }
+
+  private void loadEntry(String line) {
+    String[] parts = line.split("\t", 5);
+    if (parts.length < 5) {
+      log.warn("Ignoring invalid journal entry: " + line);
+      return;
+    }
+    try {
+      update(parts[4], parts[0], parts[1], ValidationOutcome.valueOf(parts[2]), Long.parseLong(parts[3]));
+    } catch (IllegalArgumentException e) {
+      log.warn("Ignoring invalid journal entry: " + line);
+    }
+  }
+
+  private void update(String key, String contentHash, String fingerprint, ValidationOutcome outcome,
+                      long warnings) {
+    if (outcome == ValidationOutcome.PASSED) {
+      passed.put(key, new Entry(contentHash, fingerprint, warnings));
+    } else {
+      passed.remove(key);
+    }
+  }
+
+  private static String key(File file) {
+    return file.getAbsolutePath();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static class Entry {
+    private final String contentHash;
+    private final String fingerprint;
+    private final long warnings;
+
+    private Entry(String contentHash, String fingerprint, long warnings) {
+      this.contentHash = contentHash;
+      this.fingerprint = fingerprint;
+      this.warnings = warnings;
+    }
+  }
+}
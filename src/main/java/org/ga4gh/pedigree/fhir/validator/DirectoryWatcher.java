@@ -0,0 +1,226 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ValidationResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Watches a drop folder and validates pedigree files, in FHIR JSON or NDJSON format, as soon as they are created or
+ * modified. Events for a file are debounced, so a file is only validated once it has not been written to for a while,
+ * and files whose content has not changed since they were last validated are skipped. Files and sub-folders that
+ * disappear while they are being looked at are skipped, so the watcher keeps running.
+ *
+ * <p>The watching thread never reads files or waits for heap budget. Settled files are handed to a submitting thread,
+ * which waits for the scheduler to admit them and reads NDJSON files, and JSON files are hashed by the worker that
+ * validates them, so file system events keep being handled while a big file is read or the budget is used up.
+ */
+public class DirectoryWatcher {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(DirectoryWatcher.class);
+
+  private final Path folder;
+  private final ValidationScheduler scheduler;
+  private final long debounceMillis;
+  private final BiConsumer<String, ValidationResult> handler;
+
+  /** Files with pending changes and the time of their last event, in nanoseconds. */
+  private final Map<Path, Long> pending = new HashMap<>();
+
+  /** The hash of the content of each file the last time it was submitted for validation. */
+  private final Map<Path, String> hashes = new ConcurrentHashMap<>();
+
+  /** Submits settled files to the scheduler, one at a time and in order. */
+  private ExecutorService submitter;
+
+  /**
+   * Creates a new watcher.
+   *
+   * @param folder The folder to watch, including its sub-folders.
+   * @param scheduler The scheduler used to validate files.
+   * @param debounceMillis How long a file has to be left alone before it is validated, in milliseconds.
+   * @param handler Receives the name of each pedigree and its validation result, from a worker thread. The name is
+   *                the path of the file, followed by a colon and the line number for NDJSON files.
+   */
+  public DirectoryWatcher(File folder, ValidationScheduler scheduler, long debounceMillis,
+                          BiConsumer<String, ValidationResult> handler) {
+    this.folder = folder.toPath();
+    this.scheduler = scheduler;
+    this.debounceMillis = debounceMillis;
+    this.handler = handler;
+  }
+
+  /**
+   * Validates the pedigree files already in the folder and then any files that are created or modified, until the
+   * current thread is interrupted.
+   *
+   * @throws IOException If the folder cannot be watched.
+   * @throws InterruptedException If the current thread is interrupted.
+   */
+  public void run() throws IOException, InterruptedException {
+    submitter = Executors.newSingleThreadExecutor();
+    try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+      register(watchService, folder);
+      log.info("Watching folder " + folder);
+
+      while (!Thread.currentThread().isInterrupted()) {
+        WatchKey key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+        while (key != null) {
+          handleEvents(watchService, key);
+          key = watchService.poll();
+        }
+        submitSettledFiles();
+      }
+      throw new InterruptedException();
+    } catch (ClosedWatchServiceException e) {
+      throw new InterruptedException();
+    } finally {
+      submitter.shutdownNow();
+    }
+  }
+
+  private void handleEvents(WatchService watchService, WatchKey key) throws IOException {
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Some events were lost so check everything again; unchanged files are skipped anyway
+        log.warn("Missed some file system events, rescanning folder " + folder);
+        register(watchService, folder);
+        continue;
+      }
+
+      Path path = dir.resolve((Path) event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+        pending.remove(path);
+        hashes.remove(path);
+      } else if (Files.isDirectory(path)) {
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+          register(watchService, path);
+        }
+      } else if (isPedigreeFile(path)) {
+        pending.put(path, System.nanoTime());
+      }
+    }
+    key.reset();
+  }
+
+  /**
+   * Registers a folder and its sub-folders and marks the pedigree files they contain as pending. Sub-folders and
+   * files that cannot be read, e.g. because they were deleted in the meantime, are skipped.
+   *
+   * @throws IOException If the watched folder itself cannot be registered.
+   */
+  private void register(WatchService watchService, Path start) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        try {
+          dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+          if (dir.equals(folder)) {
+            throw e;
+          }
+          log.warn("Unable to watch folder " + dir + ": " + e.getLocalizedMessage());
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() && isPedigreeFile(file)) {
+          pending.put(file, System.nanoTime());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        if (file.equals(folder)) {
+          throw e;
+        }
+        log.warn("Unable to read " + file + ": " + e.getLocalizedMessage());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void submitSettledFiles() {
+    long now = System.nanoTime();
+    Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Path, Long> entry = it.next();
+      if (TimeUnit.NANOSECONDS.toMillis(now - entry.getValue()) < debounceMillis) {
+        continue;
+      }
+      it.remove();
+
+      Path path = entry.getKey();
+      submitter.execute(() -> {
+        try {
+          submit(path);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+  }
+
+  /**
+   * Submits a file for validation unless its content has not changed since it was last submitted. Called from the
+   * submitting thread.
+   */
+  private void submit(Path path) throws InterruptedException {
+    if (!isNdjson(path)) {
+      scheduler.submit(path.toFile(), hash -> isChanged(path, hash), (f, vr) -> handler.accept(f.getPath(), vr));
+      return;
+    }
+
+    String hash;
+    try {
+      hash = CompletionJournal.hash(path.toFile());
+    } catch (IOException e) {
+      // The file might have been moved or deleted in the meantime
+      log.warn("Unable to read file " + path + ": " + e.getLocalizedMessage());
+      return;
+    }
+    if (isChanged(path, hash)) {
+      scheduler.submitNdjson(path.toFile(), handler);
+    }
+  }
+
+  private boolean isChanged(Path path, String hash) {
+    return !hash.equals(hashes.put(path, hash));
+  }
+
+  private static boolean isPedigreeFile(Path path) {
+    return path.getFileName().toString().endsWith(".json") || isNdjson(path);
+  }
+
+  private static boolean isNdjson(Path path) {
+    return path.getFileName().toString().endsWith(".ndjson");
+  }
+}
@@ -0,0 +1,214 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.common.hapi.validation.support.NpmPackageValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Keeps track of the versions of the Pedigree IG package that pedigrees can be validated against. Packages are only
+ * loaded the first time a pedigree refers to their version in its profile, e.g.
+ * <code>http://purl.org/ga4gh/pedigree-fhir-ig/StructureDefinition/Pedigree|0.1.0</code>, and the validator built
+ * from each package is shared by all validations. Only a limited number of versions are kept loaded; the least
+ * recently used one is evicted when another version needs to be loaded. Pedigrees that do not refer to a registered
+ * version are validated against the default version, which is the first version registered.
+ */
+public class IgPackageRegistry {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(IgPackageRegistry.class);
+
+  /** The canonical URL of the Pedigree IG. */
+  public static final String IG_CANONICAL = "http://purl.org/ga4gh/pedigree-fhir-ig/";
+
+  /** Prefix of locations that refer to a package on the classpath rather than on the file system. */
+  public static final String CLASSPATH_PREFIX = "classpath:";
+
+  /** Default maximum number of versions kept loaded. */
+  public static final int DEFAULT_MAX_LOADED_VERSIONS = 3;
+
+  private final FhirContext ctx;
+  private final Function<NpmPackageValidationSupport, FhirValidator> validatorFactory;
+  private final Map<String, String> locations = new LinkedHashMap<>();
+  private final LinkedHashMap<String, LoadedVersion> loaded;
+  private String defaultVersion;
+
+  /**
+   * Creates a new registry.
+   *
+   * @param ctx The FHIR context.
+   * @param validatorFactory Creates a validator from the validation support for a package.
+   * @param maxLoadedVersions The maximum number of versions kept loaded.
+   */
+  public IgPackageRegistry(FhirContext ctx, Function<NpmPackageValidationSupport, FhirValidator> validatorFactory,
+                           int maxLoadedVersions) {
+    this.ctx = ctx;
+    this.validatorFactory = validatorFactory;
+    this.loaded = new LinkedHashMap<String, LoadedVersion>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LoadedVersion> eldest) {
+        if (size() > maxLoadedVersions) {
+          log.info("Unloading Pedigree IG version " + eldest.getKey());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Registers a version of the IG package. The package is not loaded until a pedigree needs it. The first version
+   * registered is the default one.
+   *
+   * @param version The version of the IG.
+   * @param location The path to the package.tgz file, or its location in the classpath prefixed with "classpath:".
+   */
+  public synchronized void register(String version, String location) {
+    locations.put(version, location);
+    loaded.remove(version);
+    if (defaultVersion == null) {
+      defaultVersion = version;
+    }
+  }
+
+  /**
+   * Returns the version of the IG a pedigree should be validated against: the version it refers to if that version
+   * has been registered, or the default version otherwise.
+   *
+   * @param version The version of the IG the pedigree refers to, or null if it does not refer to one.
+   * @return The version to validate against.
+   */
+  public synchronized String resolveVersion(String version) {
+    return (version != null && locations.containsKey(version)) ? version : defaultVersion;
+  }
+
+  /**
+   * Returns the validator for a registered version of the IG, loading its package if necessary.
+   *
+   * @param version The version of the IG, see {@link #resolveVersion(String)}.
+   * @return The validator.
+   */
+  public FhirValidator getValidator(String version) {
+    LoadedVersion lv;
+    synchronized (this) {
+      String location = locations.get(version);
+      if (location == null) {
+        throw new IllegalArgumentException("Version " + version + " of the Pedigree IG has not been registered");
+      }
+      lv = loaded.get(version);
+      if (lv == null) {
+        lv = new LoadedVersion(version, location);
+        loaded.put(version, lv);
+      }
+    }
+    // Load outside the registry lock so pedigrees for versions that are already loaded are not held up
+    return lv.get();
+  }
+
+  /**
+   * Returns the version of the IG referred to by the profiles of a pedigree, or null if it does not refer to one.
+   */
+  static String getVersion(Bundle pedigree) {
+    if (!pedigree.hasMeta()) {
+      return null;
+    }
+    for (CanonicalType profile : pedigree.getMeta().getProfile()) {
+      String url = profile.getValue();
+      if (url != null && url.startsWith(IG_CANONICAL)) {
+        int idx = url.lastIndexOf('|');
+        if (idx != -1 && idx < url.length() - 1) {
+          return url.substring(idx + 1);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads the version of an IG package from its package.json file.
+   *
+   * @param location The path to the package.tgz file, or its location in the classpath prefixed with "classpath:".
+   * @return The version.
+   * @throws IOException If the package cannot be read.
+   */
+  public static String readVersion(String location) throws IOException {
+    try (InputStream is = open(location)) {
+      return NpmPackage.fromPackage(is).version();
+    }
+  }
+
+  private static InputStream open(String location) throws IOException {
+    if (!location.startsWith(CLASSPATH_PREFIX)) {
+      return new FileInputStream(location);
+    }
+    String path = location.substring(CLASSPATH_PREFIX.length());
+    InputStream is = IgPackageRegistry.class.getClassLoader().getResourceAsStream(path);
+    if (is == null) {
+      throw new FileNotFoundException("Unable to find " + path + " in the classpath");
+    }
+    return is;
+  }
+
+  private NpmPackageValidationSupport load(String version, String location) throws IOException {
+    log.info("Loading Pedigree IG version " + version + " from " + location);
+    NpmPackageValidationSupport npmPackageSupport = new NpmPackageValidationSupport(ctx);
+    if (location.startsWith(CLASSPATH_PREFIX)) {
+      npmPackageSupport.loadPackageFromClasspath(location.substring(CLASSPATH_PREFIX.length()));
+    } else {
+      try (InputStream is = open(location)) {
+        NpmPackage pkg = NpmPackage.fromPackage(is);
+        NpmPackage.NpmPackageFolder folder = pkg.getFolders().get("package");
+        if (folder != null) {
+          for (String nextFile : folder.listFiles()) {
+            if (nextFile.toLowerCase(Locale.US).endsWith(".json")) {
+              String input = new String(folder.getContent().get(nextFile), StandardCharsets.UTF_8);
+              IBaseResource resource = ctx.newJsonParser().parseResource(input);
+              npmPackageSupport.addResource(resource);
+            }
+          }
+        }
+      }
+    }
+    return npmPackageSupport;
+  }
+
+  /**
+   * A version of the IG whose validator is created the first time it is needed.
+   */
+  private class LoadedVersion {
+    private final String version;
+    private final String location;
+    private FhirValidator validator;
+
+    private LoadedVersion(String version, String location) {
+      this.version = version;
+      this.location = location;
+    }
+
+    private synchronized FhirValidator get() {
+      if (validator == null) {
+        try {
+          validator = validatorFactory.apply(load(version, location));
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to load version " + version + " of the Pedigree IG from " + location, e);
+        }
+      }
+      return validator;
+    }
+  }
+}
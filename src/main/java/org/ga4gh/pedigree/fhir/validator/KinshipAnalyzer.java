@@ -0,0 +1,261 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Computes kinship and inbreeding coefficients over the biological parent graph of a pedigree. The kinship
+ * coefficient of two individuals is the probability that alleles sampled at random from each of them are identical by
+ * descent, and the inbreeding coefficient of an individual is the kinship coefficient of its parents.
+ *
+ * <p>Coefficients are computed with the recursive method: because individuals are numbered in topological order, the
+ * kinship of a and b, with a after b, is the average of the kinship of each of the parents of a with b. Intermediate
+ * coefficients are memoised in a sparse map, so only pairs of individuals with common ancestors are visited, and
+ * independent computations run in parallel sharing the memo. The memo stores keys and values in primitive arrays, so
+ * large pedigrees do not need a boxed key and value for every pair. Instances are thread safe.
+ */
+public class KinshipAnalyzer {
+
+  private final PedigreeGraph graph;
+
+  /**
+   * Coefficients already computed, keyed by the pair of indexes. The inbreeding coefficient of an individual is
+   * stored using its own index twice.
+   */
+  private final Memo memo = new Memo();
+
+  public KinshipAnalyzer(PedigreeGraph graph) {
+    this.graph = graph;
+  }
+
+  /**
+   * Creates an analyser for a pedigree, typically one that has just passed validation.
+   *
+   * @see PedigreeGraph#fromBundle(Bundle)
+   */
+  public static KinshipAnalyzer of(Bundle pedigree) {
+    return new KinshipAnalyzer(PedigreeGraph.fromBundle(pedigree));
+  }
+
+  public PedigreeGraph getGraph() {
+    return graph;
+  }
+
+  /**
+   * Returns the kinship coefficient of two individuals.
+   *
+   * @throws IllegalArgumentException If one of the individuals is not in the pedigree.
+   */
+  public double kinship(String id1, String id2) {
+    return kinship(index(id1), index(id2));
+  }
+
+  /**
+   * Returns the kinship coefficients of several pairs of individuals, computed in parallel. The pairs are given as
+   * two arrays of the same length.
+   *
+   * @throws IllegalArgumentException If one of the individuals is not in the pedigree.
+   */
+  public double[] kinship(String[] ids1, String[] ids2) {
+    if (ids1.length != ids2.length) {
+      throw new IllegalArgumentException("Both arrays of individuals should have the same length");
+    }
+    int[] idx1 = new int[ids1.length];
+    int[] idx2 = new int[ids2.length];
+    for (int i = 0; i < ids1.length; i++) {
+      idx1[i] = index(ids1[i]);
+      idx2[i] = index(ids2[i]);
+    }
+    return IntStream.range(0, ids1.length).parallel().mapToDouble(i -> kinship(idx1[i], idx2[i])).toArray();
+  }
+
+  /**
+   * Returns the inbreeding coefficient of an individual.
+   *
+   * @throws IllegalArgumentException If the individual is not in the pedigree.
+   */
+  public double inbreeding(String id) {
+    return inbreeding(index(id));
+  }
+
+  /**
+   * Returns the inbreeding coefficients of all the individuals in the pedigree, computed in parallel, in topological
+   * order.
+   */
+  public Map<String, Double> inbreeding() {
+    double[] res = IntStream.range(0, graph.size()).parallel().mapToDouble(this::inbreeding).toArray();
+    Map<String, Double> map = new LinkedHashMap<>(res.length * 2);
+    for (int i = 0; i < res.length; i++) {
+      map.put(graph.getId(i), res[i]);
+    }
+    return map;
+  }
+
+  private double inbreeding(int i) {
+    long key = key(i, i);
+    double memoised = memo.get(key);
+    if (!Double.isNaN(memoised)) {
+      return memoised;
+    }
+    // Concurrent threads might compute the same coefficient, but they always get the same value
+    double res = kinship(graph.getParent1(i), graph.getParent2(i));
+    memo.put(key, res);
+    return res;
+  }
+
+  private double kinship(int a, int b) {
+    if (a < 0 || b < 0) {
+      return 0;
+    }
+    if (a == b) {
+      return (1 + inbreeding(a)) / 2;
+    }
+    if (a < b) {
+      int tmp = a;
+      a = b;
+      b = tmp;
+    }
+    // a comes after b, so a is not an ancestor of b and we can recurse on the parents of a
+    int p1 = graph.getParent1(a);
+    int p2 = graph.getParent2(a);
+    if (p1 < 0 && p2 < 0) {
+      return 0;
+    }
+
+    long key = key(a, b);
+    double memoised = memo.get(key);
+    if (!Double.isNaN(memoised)) {
+      return memoised;
+    }
+    double res = (kinship(p1, b) + kinship(p2, b)) / 2;
+    memo.put(key, res);
+    return res;
+  }
+
+  private static long key(int a, int b) {
+    return ((long) a << 32) | b;
+  }
+
+  private int index(String id) {
+    int idx = graph.indexOf(id);
+    if (idx == -1) {
+      throw new IllegalArgumentException("Individual " + id + " is not in the pedigree");
+    }
+    return idx;
+  }
+
+  /**
+   * A concurrent map from pairs of indexes to coefficients. It is split into stripes, each an open addressing hash
+   * table guarded by its own lock, so threads computing different coefficients rarely wait for each other.
+   */
+  static class Memo {
+    private static final int STRIPE_BITS = 6;
+
+    /** Marks an empty slot. Keys are built from two non-negative indexes so they are never negative. */
+    private static final long EMPTY = -1;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    Memo() {
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = new Stripe();
+      }
+    }
+
+    /**
+     * Returns the value of a key, or NaN if it has not been stored.
+     */
+    double get(long key) {
+      long hash = hash(key);
+      return stripes[(int) (hash >>> (64 - STRIPE_BITS))].get(key, (int) hash);
+    }
+
+    void put(long key, double value) {
+      long hash = hash(key);
+      stripes[(int) (hash >>> (64 - STRIPE_BITS))].put(key, (int) hash, value);
+    }
+
+    int size() {
+      int size = 0;
+      for (Stripe stripe : stripes) {
+        size += stripe.size();
+      }
+      return size;
+    }
+
+    private static long hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return h ^ (h >>> 29);
+    }
+
+    private static class Stripe {
+      private long[] keys = newKeys(16);
+      private double[] values = new double[16];
+      private int size = 0;
+
+      private synchronized double get(long key, int hash) {
+        int mask = keys.length - 1;
+        for (int i = hash & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+          if (keys[i] == key) {
+            return values[i];
+          }
+        }
+        return Double.NaN;
+      }
+
+      private synchronized void put(long key, int hash, double value) {
+        if (insert(keys, values, key, hash, value)) {
+          size++;
+          // Keep the table at most half full so probe sequences stay short
+          if (size * 2 > keys.length) {
+            resize();
+          }
+        }
+      }
+
+      private synchronized int size() {
+        return size;
+      }
+
+      private void resize() {
+        long[] newKeys = newKeys(keys.length * 2);
+        double[] newValues = new double[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+          if (keys[i] != EMPTY) {
+            insert(newKeys, newValues, keys[i], (int) hash(keys[i]), values[i]);
+          }
+        }
+        keys = newKeys;
+        values = newValues;
+      }
+
+      /**
+       * Stores a value and returns true if the key was not in the table.
+       */
+      private static boolean insert(long[] keys, double[] values, long key, int hash, double value) {
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        while (keys[i] != EMPTY) {
+          if (keys[i] == key) {
+            values[i] = value;
+            return false;
+          }
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        return true;
+      }
+
+      private static long[] newKeys(int length) {
+        long[] keys = new long[length];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Groups validation messages by severity and message template, i.e. the message with quoted values and numbers
+ * removed, so repeated messages such as an unknown code system warning for every condition are reported once with a
+ * count and a sample of their locations. The memory used is capped: only a limited number of groups and sample
+ * locations are kept, and messages that do not fit in a group are only counted. Each grouped message is a
+ * {@link GroupedMessage} that carries the number of messages it stands for, so totals can still be computed.
+ *
+ * <p>The cap applies to the results that are kept, e.g. while they wait to be reported. It does not lower the peak
+ * heap of a validation, because the FHIR validator builds the full list of messages before they are grouped.
+ */
+public class MessageAggregator {
+
+  /** Default maximum number of groups. */
+  public static final int DEFAULT_MAX_GROUPS = 200;
+
+  /** Default maximum number of sample locations kept for each group. */
+  public static final int DEFAULT_MAX_LOCATIONS = 5;
+
+  /** Maximum length of the message kept for each group. */
+  private static final int MAX_MESSAGE_LENGTH = 2000;
+
+  private static final Pattern QUOTED = Pattern.compile("'[^']*'|\"[^\"]*\"");
+  private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+  private final int maxGroups;
+  private final int maxLocations;
+  private final Map<String, Group> groups = new LinkedHashMap<>();
+  private final Map<ResultSeverityEnum, Long> omitted = new EnumMap<>(ResultSeverityEnum.class);
+
+  public MessageAggregator() {
+    this(DEFAULT_MAX_GROUPS, DEFAULT_MAX_LOCATIONS);
+  }
+
+  public MessageAggregator(int maxGroups, int maxLocations) {
+    this.maxGroups = maxGroups;
+    this.maxLocations = maxLocations;
+  }
+
+  public void add(SingleValidationMessage msg) {
+    String template = getTemplate(msg.getMessage());
+    String key = msg.getSeverity() + "|" + template;
+    Group group = groups.get(key);
+    if (group == null) {
+      if (groups.size() >= maxGroups) {
+        omitted.merge(msg.getSeverity(), 1L, Long::sum);
+        return;
+      }
+      group = new Group(msg);
+      groups.put(key, group);
+    }
+    group.add(msg, maxLocations);
+  }
+
+  public void addAll(List<SingleValidationMessage> messages) {
+    for (SingleValidationMessage msg : messages) {
+      add(msg);
+    }
+  }
+
+  /**
+   * Returns one message per group. Messages that were repeated include the number of occurrences and a sample of
+   * their locations. Messages that did not fit in any group are summarised in one message per severity.
+   */
+  public List<SingleValidationMessage> getMessages() {
+    List<SingleValidationMessage> res = new ArrayList<>(groups.size() + omitted.size());
+    for (Group group : groups.values()) {
+      res.add(group.toMessage());
+    }
+    for (Map.Entry<ResultSeverityEnum, Long> entry : omitted.entrySet()) {
+      GroupedMessage msg = new GroupedMessage(entry.getValue());
+      msg.setSeverity(entry.getKey());
+      msg.setMessage(entry.getValue() + " further message(s) were omitted because there were more than " + maxGroups
+        + " different messages");
+      res.add(msg);
+    }
+    return res;
+  }
+
+  /**
+   * Returns the number of messages a message stands for: the size of its group for grouped messages and one for any
+   * other message.
+   */
+  public static long getCount(SingleValidationMessage msg) {
+    return (msg instanceof GroupedMessage) ? ((GroupedMessage) msg).getCount() : 1;
+  }
+
+  static String getTemplate(String message) {
+    if (message == null) {
+      return "";
+    }
+    if (message.length() > MAX_MESSAGE_LENGTH) {
+      message = message.substring(0, MAX_MESSAGE_LENGTH);
+    }
+    return NUMBER.matcher(QUOTED.matcher(message).replaceAll("?")).replaceAll("#");
+  }
+
+  private static String getLocation(SingleValidationMessage msg) {
+    String location = (msg.getLocationString() != null) ? msg.getLocationString() : "";
+    return location + "[" + msg.getLocationLine() + "," + msg.getLocationCol() + "]";
+  }
+
+  private static class Group {
+    private final SingleValidationMessage first;
+    private final List<String> locations = new ArrayList<>();
+    private long count = 0;
+
+    private Group(SingleValidationMessage msg) {
+      this.first = new SingleValidationMessage();
+      first.setSeverity(msg.getSeverity());
+      String message = msg.getMessage();
+      first.setMessage((message != null && message.length() > MAX_MESSAGE_LENGTH)
+        ? message.substring(0, MAX_MESSAGE_LENGTH) + "..." : message);
+      first.setLocationString(msg.getLocationString());
+      first.setLocationLine(msg.getLocationLine());
+      first.setLocationCol(msg.getLocationCol());
+    }
+
+    private void add(SingleValidationMessage msg, int maxLocations) {
+      count++;
+      if (locations.size() < maxLocations) {
+        locations.add(getLocation(msg));
+      }
+    }
+
+    private SingleValidationMessage toMessage() {
+      GroupedMessage msg = new GroupedMessage(count);
+      msg.setSeverity(first.getSeverity());
+      msg.setLocationString(first.getLocationString());
+      msg.setLocationLine(first.getLocationLine());
+      msg.setLocationCol(first.getLocationCol());
+      if (count == 1) {
+        msg.setMessage(first.getMessage());
+        return msg;
+      }
+      StringBuilder sb = new StringBuilder(first.getMessage());
+      sb.append(" (").append(count).append(" similar messages, e.g. at ");
+      sb.append(String.join(", ", locations));
+      if (count > locations.size()) {
+        sb.append(" and ").append(count - locations.size()).append(" more");
+      }
+      sb.append(")");
+      msg.setMessage(sb.toString());
+      return msg;
+    }
+  }
+
+  /**
+   * A message that stands for a group of similar messages.
+   */
+  public static class GroupedMessage extends SingleValidationMessage {
+    private final long count;
+
+    public GroupedMessage(long count) {
+      this.count = count;
+    }
+
+    /**
+     * Returns the number of messages in the group.
+     */
+    public long getCount() {
+      return count;
+    }
+  }
+}
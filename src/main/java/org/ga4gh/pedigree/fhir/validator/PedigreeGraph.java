@@ -0,0 +1,255 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.FamilyMemberHistory;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The biological parent graph of a pedigree, stored as primitive arrays. Individuals are numbered in topological
+ * order, so parents always have a lower index than their children, and each individual has at most two parents. An
+ * index of -1 means the parent is unknown.
+ */
+public class PedigreeGraph {
+
+  /**
+   * KIN codes where the relative is a biological parent of the patient. The relationship code describes the relative,
+   * e.g. KIN:027 means the relative is the biological mother of the patient.
+   */
+  private static final Set<String> RELATIVE_IS_PARENT = new HashSet<>(Arrays.asList(
+    "KIN:003", // isBiologicalParent
+    "KIN:004", // isSpermDonor
+    "KIN:027", // isBiologicalMother
+    "KIN:028", // isBiologicalFather
+    "KIN:033", // hasBiologicalChild
+    "KIN:038"  // isOvumDonor
+  ));
+
+  /** KIN codes where the patient is a biological parent of the relative. */
+  private static final Set<String> PATIENT_IS_PARENT = new HashSet<>(Arrays.asList(
+    "KIN:032", // isBiologicalChild
+    "KIN:034", // hasBiologicalParent
+    "KIN:040", // hasBiologicalFather
+    "KIN:041", // hasBiologicalMother
+    "KIN:042", // hasOvumDonor
+    "KIN:044"  // hasSpermDonor
+  ));
+
+  private final String[] ids;
+  private final int[] parent1;
+  private final int[] parent2;
+  private final Map<String, Integer> indexes;
+
+  private PedigreeGraph(String[] ids, int[] parent1, int[] parent2) {
+    this.ids = ids;
+    this.parent1 = parent1;
+    this.parent2 = parent2;
+    this.indexes = new HashMap<>(ids.length * 2);
+    for (int i = 0; i < ids.length; i++) {
+      indexes.put(ids[i], i);
+    }
+  }
+
+  /**
+   * Builds the parent graph of a pedigree from the biological parent and child relationships between its
+   * individuals, using the same individuals and relationships as {@link ValidatorService#fhirToOwl(Bundle)}.
+   * Relationships are resolved using the referenced resources if the parser linked them, or the references otherwise,
+   * and relationships with individuals that are not in the pedigree are ignored.
+   *
+   * @param pedigree The pedigree.
+   * @return The parent graph.
+   * @throws IllegalArgumentException If an individual has more than two biological parents or the relationships have
+   * a cycle.
+   */
+  public static PedigreeGraph fromBundle(Bundle pedigree) {
+    Builder builder = new Builder();
+    Set<String> individuals = new HashSet<>();
+    for (Patient p : ValidatorService.getPatients(pedigree).values()) {
+      builder.addIndividual(p.getId());
+      individuals.add(p.getId());
+    }
+
+    for (FamilyMemberHistory rel : ValidatorService.getRelationships(pedigree)) {
+      Extension ext = rel.getExtensionByUrl(ValidatorService.FH_PAT_REC_EXT);
+      if (ext == null || !(ext.getValue() instanceof Reference)) {
+        continue;
+      }
+      String patient = getId(rel.getPatient());
+      String relative = getId((Reference) ext.getValue());
+      if (!individuals.contains(patient) || !individuals.contains(relative)) {
+        continue;
+      }
+      String relCode = rel.getRelationship().getCodingFirstRep().getCode();
+      if (RELATIVE_IS_PARENT.contains(relCode)) {
+        builder.addParent(patient, relative);
+      } else if (PATIENT_IS_PARENT.contains(relCode)) {
+        builder.addParent(relative, patient);
+      }
+    }
+    return builder.build();
+  }
+
+  private static String getId(Reference reference) {
+    if (reference.getResource() != null) {
+      return reference.getResource().getIdElement().getValue();
+    }
+    return reference.getReference();
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * Returns the index of an individual, or -1 if it is not in the pedigree.
+   */
+  public int indexOf(String id) {
+    Integer idx = indexes.get(id);
+    return (idx != null) ? idx : -1;
+  }
+
+  public String getId(int index) {
+    return ids[index];
+  }
+
+  /**
+   * Returns the index of the first parent of an individual, or -1 if it is unknown.
+   */
+  public int getParent1(int index) {
+    return parent1[index];
+  }
+
+  /**
+   * Returns the index of the second parent of an individual, or -1 if it is unknown.
+   */
+  public int getParent2(int index) {
+    return parent2[index];
+  }
+
+  /**
+   * Builds a parent graph from individuals and parent relationships added in any order.
+   */
+  public static class Builder {
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    private final List<int[]> parents = new ArrayList<>();
+
+    public Builder addIndividual(String id) {
+      index(id);
+      return this;
+    }
+
+    /**
+     * Adds a biological parent of an individual. Adding the same parent more than once has no effect.
+     *
+     * @throws IllegalArgumentException If the individual already has two different parents.
+     */
+    public Builder addParent(String child, String parent) {
+      int c = index(child);
+      int p = index(parent);
+      int[] ps = parents.get(c);
+      if (ps[0] == p || ps[1] == p) {
+        return this;
+      }
+      if (c == p) {
+        throw new IllegalArgumentException("Individual " + child + " cannot be its own parent");
+      } else if (ps[0] == -1) {
+        ps[0] = p;
+      } else if (ps[1] == -1) {
+        ps[1] = p;
+      } else {
+        throw new IllegalArgumentException("Individual " + child + " has more than two biological parents");
+      }
+      return this;
+    }
+
+    /**
+     * Numbers the individuals in topological order and builds the graph.
+     *
+     * @throws IllegalArgumentException If the parent relationships have a cycle.
+     */
+    public PedigreeGraph build() {
+      int n = ids.size();
+
+      // Kahn's algorithm, from founders to descendants
+      int[] pendingParents = new int[n];
+      int[] childCount = new int[n];
+      for (int i = 0; i < n; i++) {
+        for (int p : parents.get(i)) {
+          if (p != -1) {
+            pendingParents[i]++;
+            childCount[p]++;
+          }
+        }
+      }
+      int[][] children = new int[n][];
+      for (int i = 0; i < n; i++) {
+        children[i] = new int[childCount[i]];
+        childCount[i] = 0;
+      }
+      for (int i = 0; i < n; i++) {
+        for (int p : parents.get(i)) {
+          if (p != -1) {
+            children[p][childCount[p]++] = i;
+          }
+        }
+      }
+
+      int[] order = new int[n];
+      int head = 0;
+      int tail = 0;
+      for (int i = 0; i < n; i++) {
+        if (pendingParents[i] == 0) {
+          order[tail++] = i;
+        }
+      }
+      while (head < tail) {
+        int i = order[head++];
+        for (int c : children[i]) {
+          if (--pendingParents[c] == 0) {
+            order[tail++] = c;
+          }
+        }
+      }
+      if (tail < n) {
+        throw new IllegalArgumentException("The biological parent relationships in the pedigree have a cycle");
+      }
+
+      int[] newIndex = new int[n];
+      for (int i = 0; i < n; i++) {
+        newIndex[order[i]] = i;
+      }
+      String[] sortedIds = new String[n];
+      int[] parent1 = new int[n];
+      int[] parent2 = new int[n];
+      for (int i = 0; i < n; i++) {
+        int old = order[i];
+        int[] ps = parents.get(old);
+        sortedIds[i] = ids.get(old);
+        parent1[i] = (ps[0] != -1) ? newIndex[ps[0]] : -1;
+        parent2[i] = (ps[1] != -1) ? newIndex[ps[1]] : -1;
+      }
+      return new PedigreeGraph(sortedIds, parent1, parent2);
+    }
+
+    private int index(String id) {
+      Integer idx = indexes.get(id);
+      if (idx == null) {
+        idx = ids.size();
+        indexes.put(id, idx);
+        ids.add(id);
+        parents.add(new int[] { -1, -1 });
+      }
+      return idx;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Remote terminology service support that emits a {@link TerminologyCallEvent} for every code validation.
+ */
+public class RecordingTerminologyServiceValidationSupport extends RemoteTerminologyServiceValidationSupport {
+
+  public RecordingTerminologyServiceValidationSupport(FhirContext ctx) {
+    super(ctx);
+  }
+
+  @Override
+  public CodeValidationResult validateCode(ValidationSupportContext theValidationSupportContext,
+                                           ConceptValidationOptions theOptions, String theCodeSystem,
+                                           String theCode, String theDisplay, String theValueSetUrl) {
+    TerminologyCallEvent event = TerminologyCallEvent.start("validateCode", theCodeSystem, theCode,
+      theValueSetUrl);
+    try {
+      return super.validateCode(theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay,
+        theValueSetUrl);
+    } finally {
+      event.commit();
+    }
+  }
+
+  @Override
+  public CodeValidationResult validateCodeInValueSet(ValidationSupportContext theValidationSupportContext,
+                                                     ConceptValidationOptions theOptions, String theCodeSystem,
+                                                     String theCode, String theDisplay, IBaseResource theValueSet) {
+    TerminologyCallEvent event = TerminologyCallEvent.start("validateCodeInValueSet", theCodeSystem, theCode,
+      theValueSet != null ? theValueSet.getIdElement().getValue() : null);
+    try {
+      return super.validateCodeInValueSet(theValidationSupportContext, theOptions, theCodeSystem, theCode,
+        theDisplay, theValueSet);
+    } finally {
+      event.commit();
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Splits a corpus of pedigree files into deterministic shards and coordinates the worker processes that validate
+ * them. A file is assigned to a shard using a hash of its path relative to the corpus folder, so every worker computes
+ * the same assignment regardless of where the corpus is mounted. This means workers can run on other nodes that share
+ * the corpus through a shared file system, and their reports merged afterwards.
+ */
+public class ShardCoordinator {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(ShardCoordinator.class);
+
+  private final int shards;
+  private final File reportDir;
+
+  public ShardCoordinator(int shards, File reportDir) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("The number of shards must be at least 1 but was " + shards);
+    }
+    this.shards = shards;
+    this.reportDir = reportDir;
+  }
+
+  /**
+   * Returns the shard a file belongs to.
+   *
+   * @param base The base folder of the corpus.
+   * @param file A file in the corpus.
+   * @param shards The total number of shards.
+   * @return The shard, between 0 and shards - 1.
+   */
+  public static int shardOf(File base, File file, int shards) {
+    Path relative = base.isFile() ? file.toPath().getFileName()
+      : base.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath());
+    String key = relative.toString().replace(File.separatorChar, '/');
+    CRC32 crc = new CRC32();
+    crc.update(key.getBytes(StandardCharsets.UTF_8));
+    return (int) (crc.getValue() % shards);
+  }
+
+  /**
+   * Returns the files in a corpus that belong to a shard.
+   */
+  public static List<File> selectShard(File base, List<File> files, int shard, int shards) {
+    return files.stream().filter(f -> shardOf(base, f, shards) == shard).collect(Collectors.toList());
+  }
+
+  public File getReportFile(int shard) {
+    return new File(reportDir, "shard-" + shard + "-of-" + shards + ".tsv");
+  }
+
+  public File getLogFile(int shard) {
+    return new File(reportDir, "shard-" + shard + "-of-" + shards + ".log");
+  }
+
+  /**
+   * Returns the file used by a shard instead of a file shared by all the shards, e.g. a journal. Each shard has its
+   * own file so workers on different nodes never append to the same file.
+   */
+  public static File getShardFile(File file, int shard, int shards) {
+    return new File(file.getPath() + ".shard-" + shard + "-of-" + shards);
+  }
+
+  /**
+   * Launches one local worker JVM per shard and waits for all of them to finish. The output of each worker is
+   * written to a log file next to its report. Reports left behind by previous runs are deleted first, so the report
+   * of a worker that fails is missing rather than stale. Each worker gets an equal share of the maximum heap of this
+   * JVM.
+   *
+   * @param workerArgs The command line arguments shared by all the workers, including the corpus folder. The shard
+   *                   and report arguments are added for each worker.
+   * @throws IOException If a worker cannot be started.
+   * @throws InterruptedException If interrupted while waiting for the workers.
+   */
+  public void runLocalWorkers(List<String> workerArgs) throws IOException, InterruptedException {
+    Files.createDirectories(reportDir.toPath());
+    for (int shard = 0; shard < shards; shard++) {
+      Files.deleteIfExists(getReportFile(shard).toPath());
+    }
+
+    List<String> javaCommand = getJavaCommand(shards);
+    List<Process> workers = new ArrayList<>();
+    for (int shard = 0; shard < shards; shard++) {
+      List<String> command = new ArrayList<>(javaCommand);
+      command.addAll(workerArgs);
+      command.add("--shards");
+      command.add(String.valueOf(shards));
+      command.add("--shard");
+      command.add(String.valueOf(shard));
+      command.add("--reportDir");
+      command.add(reportDir.getAbsolutePath());
+
+      log.info("Starting worker for shard " + shard);
+      ProcessBuilder pb = new ProcessBuilder(command);
+      pb.redirectErrorStream(true);
+      pb.redirectOutput(getLogFile(shard));
+      workers.add(pb.start());
+    }
+
+    for (int shard = 0; shard < shards; shard++) {
+      int exitCode = workers.get(shard).waitFor();
+      if (exitCode != 0) {
+        log.error("Worker for shard " + shard + " exited with code " + exitCode + ", see " + getLogFile(shard));
+      } else {
+        log.info("Worker for shard " + shard + " finished");
+      }
+    }
+  }
+
+  /**
+   * Merges the reports of all the shards into a single report and summary.
+   *
+   * @param merged The file where the merged report is written.
+   * @param unsuccessful Receives every report line that did not pass validation.
+   * @return The summary.
+   * @throws IOException If the report of a shard is missing, incomplete or cannot be read.
+   */
+  public ShardReport.Summary merge(File merged, Consumer<String> unsuccessful) throws IOException {
+    List<File> reports = new ArrayList<>();
+    for (int shard = 0; shard < shards; shard++) {
+      File report = getReportFile(shard);
+      if (!report.exists()) {
+        throw new IOException("The report for shard " + shard + " is missing: " + report.getAbsolutePath());
+      }
+      reports.add(report);
+    }
+    return ShardReport.merge(reports, merged, unsuccessful);
+  }
+
+  /**
+   * Returns the command used to start a JVM that runs this application, with the same JVM options and system
+   * properties as the current one, and the maximum heap of the current one split between the workers.
+   */
+  private static List<String> getJavaCommand(int workers) {
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    long maxHeap = Runtime.getRuntime().maxMemory();
+    boolean splitHeap = maxHeap != Long.MAX_VALUE;
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (splitHeap && (arg.startsWith("-Xmx") || arg.startsWith("-Xms"))) {
+        continue;
+      }
+      if (arg.startsWith("-X") || arg.startsWith("-D")) {
+        command.add(arg);
+      }
+    }
+    if (splitHeap) {
+      command.add("-Xmx" + Math.max(64, maxHeap / workers / (1024 * 1024)) + "m");
+    }
+    String classPath = System.getProperty("java.class.path");
+    if (isExecutableJar(classPath)) {
+      // Running from the executable jar, which has nested jars and its own launcher
+      command.add("-jar");
+      command.add(classPath);
+    } else {
+      command.add("-cp");
+      command.add(classPath);
+      command.add(PedigreeValidatorApplication.class.getName());
+    }
+    return command;
+  }
+
+  /**
+   * Returns true if the class path is a single Spring Boot executable jar. Other single jars, e.g. manifest-only
+   * jars created by test runners, are used as a regular class path.
+   */
+  private static boolean isExecutableJar(String classPath) {
+    if (classPath.contains(File.pathSeparator) || !classPath.endsWith(".jar")) {
+      return false;
+    }
+    try (JarFile jar = new JarFile(classPath)) {
+      Manifest manifest = jar.getManifest();
+      return manifest != null && manifest.getMainAttributes().getValue("Start-Class") != null;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ValidationResult;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A report with one line per validated pedigree. Each line holds the outcome, the number of errors and warnings and
+ * the path of the pedigree, separated by tabs. Lines are written as soon as each validation completes so reports with
+ * millions of entries never need to be held in memory. Reports produced by different shards can be merged into a
+ * single {@link Summary}. A report ends with a completion marker once all of its pedigrees have been validated, so
+ * the report of a worker that did not finish is never merged.
+ */
+public class ShardReport implements Closeable {
+
+  private static final String HEADER = "#outcome\terrors\twarnings\tpath";
+
+  private static final String COMPLETE = "#complete";
+
+  private final BufferedWriter writer;
+
+  public ShardReport(File reportFile) throws IOException {
+    File parent = reportFile.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      Files.createDirectories(parent.toPath());
+    }
+    this.writer = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8);
+    writer.write(HEADER);
+    writer.newLine();
+  }
+
+  /**
+   * Adds a line for a validated pedigree. Grouped messages count as the number of messages in their group.
+   */
+  public synchronized void add(String path, ValidationResult vr) throws IOException {
+    writer.write(ValidationOutcome.of(vr) + "\t" + ValidationOutcome.countErrors(vr) + "\t"
+      + ValidationOutcome.countWarnings(vr) + "\t" + path);
+    writer.newLine();
+  }
+
+  /**
+   * Adds a line for a pedigree that passed validation in a previous run and was skipped in this one.
+   *
+   * @param path The path of the pedigree.
+   * @param warnings The number of warnings found when it was validated.
+   */
+  public synchronized void addPassed(String path, long warnings) throws IOException {
+    writer.write(ValidationOutcome.PASSED + "\t0\t" + warnings + "\t" + path);
+    writer.newLine();
+  }
+
+  /**
+   * Marks the report as complete. Call once all the pedigrees of the shard have been added.
+   */
+  public synchronized void complete() throws IOException {
+    writer.write(COMPLETE);
+    writer.newLine();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  /**
+   * Merges several shard reports into a single summary.
+   *
+   * @param reportFiles The shard reports.
+   * @param merged The file where all the report lines are written, or null if a merged report is not needed.
+   * @param unsuccessful Receives every line of the reports that did not pass validation.
+   * @return The summary.
+   * @throws IOException If there is a problem reading or writing the reports, or a report is incomplete or invalid.
+   */
+  public static Summary merge(List<File> reportFiles, File merged, Consumer<String> unsuccessful)
+    throws IOException {
+    Summary summary = new Summary();
+    BufferedWriter out = null;
+    try {
+      if (merged != null) {
+        out = Files.newBufferedWriter(merged.toPath(), StandardCharsets.UTF_8);
+        out.write(HEADER);
+        out.newLine();
+      }
+      for (File reportFile : reportFiles) {
+        boolean complete = false;
+        try (BufferedReader reader = Files.newBufferedReader(reportFile.toPath(), StandardCharsets.UTF_8)) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (COMPLETE.equals(line)) {
+              complete = true;
+              continue;
+            }
+            if (line.isEmpty() || line.startsWith("#")) {
+              continue;
+            }
+            String[] parts = line.split("\t", 4);
+            if (parts.length < 4) {
+              throw new IOException("Invalid line in report " + reportFile + ": " + line);
+            }
+            ValidationOutcome outcome;
+            try {
+              outcome = ValidationOutcome.valueOf(parts[0]);
+              summary.add(outcome, Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            } catch (IllegalArgumentException e) {
+              throw new IOException("Invalid line in report " + reportFile + ": " + line, e);
+            }
+            if (outcome != ValidationOutcome.PASSED) {
+              unsuccessful.accept(line);
+            }
+            if (out != null) {
+              out.write(line);
+              out.newLine();
+            }
+          }
+        }
+        if (!complete) {
+          throw new IOException("The report " + reportFile + " is incomplete, its worker did not finish");
+        }
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+    return summary;
+  }
+
+  /**
+   * Totals for a set of validated pedigrees.
+   */
+  public static class Summary {
+    private long passed = 0;
+    private long failed = 0;
+    private long errored = 0;
+    private long errors = 0;
+    private long warnings = 0;
+
+    void add(ValidationOutcome outcome, long errors, long warnings) {
+      switch (outcome) {
+        case PASSED:
+          passed++;
+          break;
+        case FAILED:
+          failed++;
+          break;
+        case ERROR:
+          errored++;
+          break;
+      }
+      this.errors += errors;
+      this.warnings += warnings;
+    }
+
+    public long getTotal() {
+      return passed + failed + errored;
+    }
+
+    public long getPassed() {
+      return passed;
+    }
+
+    public long getFailed() {
+      return failed;
+    }
+
+    public long getErrored() {
+      return errored;
+    }
+
+    public long getErrors() {
+      return errors;
+    }
+
+    public long getWarnings() {
+      return warnings;
+    }
+
+    @Override
+    public String toString() {
+      return getTotal() + " pedigree(s) validated: " + passed + " passed, " + failed + " failed, " + errored
+        + " could not be validated (" + errors + " error(s), " + warnings + " warning(s))";
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import jdk.jfr.Recording;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a focused, continuous flight recording of the validator and dumps it, together with the offending bundle,
+ * whenever a pedigree takes longer than a threshold to validate. The recording only includes the validator events,
+ * method samples, garbage collections and lock contention, so it is cheap enough to leave on in production. Dumps are
+ * rate limited, so a burst of slow pedigrees, e.g. when the terminology server is down, does not fill the disk.
+ */
+public class SlowValidationRecorder implements Closeable {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(SlowValidationRecorder.class);
+
+  /** Default minimum time between dumps, in milliseconds. */
+  public static final long DEFAULT_COOLDOWN_MILLIS = 60_000;
+
+  /** Default maximum number of dumps. */
+  public static final int DEFAULT_MAX_DUMPS = 20;
+
+  private final long thresholdNanos;
+  private final File dumpDir;
+  private final long cooldownNanos;
+  private final int maxDumps;
+  private final Recording recording;
+  private int dumps = 0;
+  private long lastDumpNanos;
+
+  /**
+   * Creates a new recorder and starts recording.
+   *
+   * @param thresholdMillis Validations that take longer than this are dumped, in milliseconds.
+   * @param dumpDir The folder where recordings and bundles are dumped.
+   */
+  public SlowValidationRecorder(long thresholdMillis, File dumpDir) {
+    this(thresholdMillis, dumpDir, DEFAULT_COOLDOWN_MILLIS, DEFAULT_MAX_DUMPS);
+  }
+
+  /**
+   * Creates a new recorder and starts recording.
+   *
+   * @param thresholdMillis Validations that take longer than this are dumped, in milliseconds.
+   * @param dumpDir The folder where recordings and bundles are dumped.
+   * @param cooldownMillis The minimum time between dumps, in milliseconds.
+   * @param maxDumps The maximum number of dumps.
+   */
+  public SlowValidationRecorder(long thresholdMillis, File dumpDir, long cooldownMillis, int maxDumps) {
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.dumpDir = dumpDir;
+    this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+    this.maxDumps = maxDumps;
+
+    this.recording = new Recording();
+    recording.setName("Pedigree validator");
+    recording.setToDisk(true);
+    // Keep enough history to cover the slow validation
+    recording.setMaxAge(Duration.ofMillis(Math.max(2 * thresholdMillis, 60_000)));
+    recording.enable(ValidationPhaseEvent.class);
+    recording.enable(TerminologyCallEvent.class);
+    recording.enable("jdk.ExecutionSample").withPeriod(Duration.ofMillis(20));
+    recording.enable("jdk.GarbageCollection");
+    recording.enable("jdk.GCHeapSummary");
+    recording.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(10));
+    recording.enable("jdk.ThreadPark").withThreshold(Duration.ofMillis(10));
+    recording.start();
+    log.info("Recording validations that take longer than " + thresholdMillis + " ms");
+  }
+
+  /**
+   * Dumps the recording and the bundle if a validation took longer than the threshold, unless the previous dump was
+   * less than the cooldown ago or the maximum number of dumps has been reached.
+   *
+   * @param fileName The name of the pedigree file, or null if the bundle did not come from a file.
+   * @param elapsedNanos How long the validation took, in nanoseconds.
+   * @param pedigree The pedigree bundle.
+   * @param ctx The FHIR context used to serialise the bundle.
+   * @return True if the recording and the bundle were dumped.
+   */
+  public boolean check(String fileName, long elapsedNanos, Bundle pedigree, FhirContext ctx) {
+    if (elapsedNanos <= thresholdNanos) {
+      return false;
+    }
+
+    String description = "Validation of " + ((fileName != null) ? fileName : "bundle") + " took "
+      + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms";
+    if (!startDump()) {
+      log.warn(description + ", not dumping recording because of the dump limits");
+      return false;
+    }
+    String name = ((fileName != null) ? fileName.replaceAll("[^A-Za-z0-9._-]", "_") : "bundle")
+      + "-" + System.currentTimeMillis();
+    log.warn(description + ", dumping recording " + name);
+    try {
+      Files.createDirectories(dumpDir.toPath());
+      synchronized (recording) {
+        recording.dump(new File(dumpDir, name + ".jfr").toPath());
+      }
+      try (Writer writer = Files.newBufferedWriter(new File(dumpDir, name + ".json").toPath(),
+        StandardCharsets.UTF_8)) {
+        ctx.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(pedigree, writer);
+      }
+    } catch (IOException e) {
+      log.error("Unable to dump slow validation " + name + ": " + e.getLocalizedMessage());
+      return false;
+    }
+    return true;
+  }
+
+  private synchronized boolean startDump() {
+    long now = System.nanoTime();
+    if (dumps >= maxDumps || (dumps > 0 && now - lastDumpNanos < cooldownNanos)) {
+      return false;
+    }
+    dumps++;
+    lastDumpNanos = now;
+    return true;
+  }
+
+  @Override
+  public void close() {
+    recording.close();
+  }
+}
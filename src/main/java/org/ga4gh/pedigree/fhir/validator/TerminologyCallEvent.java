@@ -0,0 +1,49 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event emitted for each call to the remote terminology server.
+ */
+@Name("org.ga4gh.pedigree.TerminologyCall")
+@Label("Terminology Call")
+@Category({ "GA4GH", "Pedigree Validator" })
+@Description("A call to the remote terminology server")
+public class TerminologyCallEvent extends Event {
+
+  /** The name of the file being validated by the current thread, if any. */
+  static final ThreadLocal<String> currentFileName = new ThreadLocal<>();
+
+  @Label("File Name")
+  String fileName;
+
+  @Label("Operation")
+  String operation;
+
+  @Label("Code System")
+  String codeSystem;
+
+  @Label("Code")
+  String code;
+
+  @Label("Value Set")
+  String valueSet;
+
+  /**
+   * Creates and begins a new event. Call {@link #commit()} when the call is done.
+   */
+  static TerminologyCallEvent start(String operation, String codeSystem, String code, String valueSet) {
+    TerminologyCallEvent event = new TerminologyCallEvent();
+    event.fileName = currentFileName.get();
+    event.operation = operation;
+    event.codeSystem = codeSystem;
+    event.code = code;
+    event.valueSet = valueSet;
+    event.begin();
+    return event;
+  }
+}
@@ -0,0 +1,52 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * The result of validating a pedigree, together with the parsed pedigree if it passed validation, so it can be
+ * analysed without parsing it again.
+ */
+public class ValidatedPedigree {
+
+  private final ValidationResult result;
+  private final Bundle pedigree;
+  private KinshipAnalyzer kinshipAnalyzer = null;
+
+  ValidatedPedigree(ValidationResult result, Bundle pedigree) {
+    this.result = result;
+    this.pedigree = result.isSuccessful() ? pedigree : null;
+  }
+
+  public ValidationResult getResult() {
+    return result;
+  }
+
+  /**
+   * Returns true if the pedigree passed validation.
+   */
+  public boolean isSuccessful() {
+    return pedigree != null;
+  }
+
+  /**
+   * Returns the parsed pedigree, or null if it did not pass validation.
+   */
+  public Bundle getPedigree() {
+    return pedigree;
+  }
+
+  /**
+   * Returns an analyser for the biological parent graph of the pedigree, built the first time it is requested, or null
+   * if the pedigree did not pass validation.
+   *
+   * @throws IllegalArgumentException If an individual has more than two biological parents or the relationships have
+   * a cycle.
+   */
+  public synchronized KinshipAnalyzer getKinshipAnalyzer() {
+    if (kinshipAnalyzer == null && pedigree != null) {
+      kinshipAnalyzer = KinshipAnalyzer.of(pedigree);
+    }
+    return kinshipAnalyzer;
+  }
+}
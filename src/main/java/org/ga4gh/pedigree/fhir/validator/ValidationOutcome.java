@@ -0,0 +1,57 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+
+/**
+ * The overall outcome of validating a pedigree, as recorded in reports.
+ */
+public enum ValidationOutcome {
+  /** The pedigree is valid, possibly with warnings. */
+  PASSED,
+  /** The pedigree was validated and has errors. */
+  FAILED,
+  /** The pedigree could not be validated, e.g. because it could not be read or parsed. */
+  ERROR;
+
+  public static ValidationOutcome of(ValidationResult vr) {
+    if (vr.isSuccessful()) {
+      return PASSED;
+    }
+    for (SingleValidationMessage msg : vr.getMessages()) {
+      if (msg.getSeverity() == ResultSeverityEnum.FATAL) {
+        return ERROR;
+      }
+    }
+    return FAILED;
+  }
+
+  /**
+   * Returns the number of errors, including fatal ones, in a validation result. Grouped messages count as the number
+   * of messages in their group.
+   */
+  public static long countErrors(ValidationResult vr) {
+    long errors = 0;
+    for (SingleValidationMessage msg : vr.getMessages()) {
+      if (msg.getSeverity() == ResultSeverityEnum.ERROR || msg.getSeverity() == ResultSeverityEnum.FATAL) {
+        errors += MessageAggregator.getCount(msg);
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * Returns the number of warnings in a validation result. Grouped messages count as the number of messages in their
+   * group.
+   */
+  public static long countWarnings(ValidationResult vr) {
+    long warnings = 0;
+    for (SingleValidationMessage msg : vr.getMessages()) {
+      if (msg.getSeverity() == ResultSeverityEnum.WARNING) {
+        warnings += MessageAggregator.getCount(msg);
+      }
+    }
+    return warnings;
+  }
+}
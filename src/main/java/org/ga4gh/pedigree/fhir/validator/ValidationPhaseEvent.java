@@ -0,0 +1,45 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event emitted for each phase of the validation of a pedigree.
+ */
+@Name("org.ga4gh.pedigree.ValidationPhase")
+@Label("Validation Phase")
+@Category({ "GA4GH", "Pedigree Validator" })
+@Description("A phase in the validation of a pedigree")
+public class ValidationPhaseEvent extends Event {
+
+  public static final String PARSE = "parse";
+  public static final String INSTANCE_VALIDATION = "instance validation";
+  public static final String FHIR_TO_OWL = "fhirToOwl";
+  public static final String CLASSIFICATION = "classification";
+  public static final String EXPLANATION = "explanation";
+
+  @Label("Phase")
+  String phase;
+
+  @Label("File Name")
+  String fileName;
+
+  @Label("Entries")
+  @Description("The number of entries in the pedigree bundle")
+  int entries;
+
+  /**
+   * Creates and begins a new event. Call {@link #commit()} when the phase is done.
+   */
+  static ValidationPhaseEvent start(String phase, String fileName, int entries) {
+    ValidationPhaseEvent event = new ValidationPhaseEvent();
+    event.phase = phase;
+    event.fileName = fileName;
+    event.entries = entries;
+    event.begin();
+    return event;
+  }
+}
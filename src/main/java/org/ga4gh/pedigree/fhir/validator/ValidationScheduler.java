@@ -0,0 +1,437 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Validates batches of pedigree files concurrently without exceeding a heap budget. The memory needed to validate
+ * each file is estimated from its size, so files are admitted without reading them on the submitting thread. Files
+ * that fit comfortably in the budget are validated in parallel using a shared {@link ValidatorService}, where every
+ * worker thread has its own reasoner. Oversized files are sent to a serial lane, one at a time. The serial lane uses
+ * the same {@link ValidatorService}, and therefore the same loaded IG packages, but its thread's reasoner is released
+ * after each file so the reasoner state built up by an oversized pedigree is not kept.
+ *
+ * <p>Half of the budget is reserved for the serial lane, so small files keep being admitted to the parallel lane while
+ * an oversized file is validated, and submitting an oversized file never waits for the parallel lane to drain. An
+ * oversized file is validated with the whole reserve, even if its estimate is bigger.
+ */
+public class ValidationScheduler implements AutoCloseable {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(ValidationScheduler.class);
+
+  /** Estimated heap used for every byte of JSON, once parsed into the HAPI model and validated. */
+  static final long HEAP_BYTES_PER_JSON_BYTE = 10;
+
+  /** Estimated heap used by the FHIR validator for every entry in a bundle. */
+  static final long HEAP_BYTES_PER_ENTRY = 16 * 1024;
+
+  /** Estimated heap used by the reasoner for every entry in a bundle. */
+  static final long REASONER_HEAP_BYTES_PER_ENTRY = 256 * 1024;
+
+  /** Estimated size of an entry of a pedigree bundle in FHIR JSON format, in bytes. */
+  static final long JSON_BYTES_PER_ENTRY = 1024;
+
+  /** Fraction of the free heap used as the default budget. */
+  private static final double DEFAULT_BUDGET_FRACTION = 0.8;
+
+  /** Fraction of the budget reserved for the serial lane. */
+  static final double SERIAL_LANE_FRACTION = 0.5;
+
+  /** Maximum number of oversized pedigrees that are already in memory, e.g. NDJSON lines, queued or being validated. */
+  private static final int MAX_OVERSIZED_IN_MEMORY = 2;
+
+  private static final String RESOURCE_TYPE = "\"resourceType\"";
+
+  private final boolean useReasoner;
+  private final ValidatorService service;
+  private final ExecutorService parallelLane;
+  private final ExecutorService serialLane;
+  private CompletionJournal journal = null;
+  private BiConsumer<File, Long> skipHandler = null;
+  private final AtomicInteger skipped = new AtomicInteger();
+
+  /** The heap budget of the parallel lane, in KB. One permit is one KB of estimated heap. */
+  private final Semaphore budget;
+  private final long oversizedThreshold;
+  private final Semaphore oversizedInMemory = new Semaphore(MAX_OVERSIZED_IN_MEMORY);
+
+  private final Object pendingLock = new Object();
+  private int pending = 0;
+
+  /**
+   * Creates a new scheduler.
+   *
+   * @param useReasoner Flag to indicate if the reasoner should be used in validation.
+   * @param terminologyServer The URL of an external terminology server, or null.
+   * @param threads The number of files that can be validated in parallel.
+   * @param heapBudget The heap budget in bytes, or a non-positive value to derive it from the free heap.
+   */
+  public ValidationScheduler(boolean useReasoner, String terminologyServer, int threads, long heapBudget) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("The number of threads must be at least 1 but was " + threads);
+    }
+    this.useReasoner = useReasoner;
+    this.service = new ValidatorService(useReasoner, terminologyServer);
+
+    if (heapBudget <= 0) {
+      Runtime rt = Runtime.getRuntime();
+      long used = rt.totalMemory() - rt.freeMemory();
+      heapBudget = (long) ((rt.maxMemory() - used) * DEFAULT_BUDGET_FRACTION);
+    }
+    int budgetKb = (int) Math.max(2, Math.min(Integer.MAX_VALUE, heapBudget / 1024));
+    int serialBudgetKb = (int) Math.max(1, budgetKb * SERIAL_LANE_FRACTION);
+    int parallelBudgetKb = budgetKb - serialBudgetKb;
+    this.budget = new Semaphore(parallelBudgetKb, true);
+    this.oversizedThreshold = (long) parallelBudgetKb * 1024 / threads;
+
+    this.parallelLane = Executors.newFixedThreadPool(threads);
+    this.serialLane = Executors.newSingleThreadExecutor();
+    log.info("Scheduling validations on " + threads + " threads with a heap budget of " + (budgetKb / 1024)
+      + " MB, of which " + (serialBudgetKb / 1024) + " MB are reserved for oversized pedigrees");
+  }
+
+  /**
+   * Schedules the validation of a pedigree file. This method blocks while there is not enough heap budget left to
+   * admit the file to the parallel lane, but never for oversized files, which are queued for the serial lane. The
+   * handler is called from a worker thread once the validation is done, so it must be thread
+   * safe. If a journal is set, files that already passed validation are skipped and passed to the skip handler
+   * instead of the handler, and the outcome of every other file is recorded after the handler is called.
+   *
+   * @param file The pedigree file.
+   * @param handler Receives the file and its validation result.
+   * @throws InterruptedException If interrupted while waiting for heap budget.
+   */
+  public void submit(File file, BiConsumer<File, ValidationResult> handler) throws InterruptedException {
+    submit(file, null, handler);
+  }
+
+  /**
+   * Schedules the validation of a pedigree file, unless the hash of its content is rejected by a filter, e.g. because
+   * the file has not changed since it was last validated. The filter is called from the worker thread, which hashes
+   * the file before validating it, so it must be thread safe. Neither handler is called for rejected files.
+   *
+   * @param file The pedigree file.
+   * @param filter Returns true if a file with the given content hash has to be validated, or null to validate it.
+   * @param handler Receives the file and its validation result.
+   * @throws InterruptedException If interrupted while waiting for heap budget.
+   * @see #submit(File, BiConsumer)
+   */
+  public void submit(File file, Predicate<String> filter, BiConsumer<File, ValidationResult> handler)
+    throws InterruptedException {
+    long size = file.length();
+    // The file is only read, and hashed, by the worker, so the submitting thread never waits for I/O
+    AtomicReference<String> contentHash = new AtomicReference<>();
+    AtomicBoolean passedBefore = new AtomicBoolean();
+    schedule("file " + file.getName(), estimateCost(size, estimateEntries(size)), s -> {
+      if (journal != null || filter != null) {
+        contentHash.set(CompletionJournal.hash(file));
+        if (filter != null && !filter.test(contentHash.get())) {
+          return null;
+        }
+        if (journal != null && journal.isComplete(file, contentHash.get())) {
+          passedBefore.set(true);
+          return null;
+        }
+      }
+      return s.validate(file);
+    }, vr -> {
+      if (vr == null) {
+        if (!passedBefore.get()) {
+          return;
+        }
+        skipped.incrementAndGet();
+        if (skipHandler != null) {
+          skipHandler.accept(file, journal.getWarnings(file));
+        }
+        return;
+      }
+      handler.accept(file, vr);
+      if (journal != null && contentHash.get() != null) {
+        try {
+          journal.record(file, contentHash.get(), ValidationOutcome.of(vr), ValidationOutcome.countWarnings(vr));
+        } catch (IOException e) {
+          log.error("Unable to record the validation of " + file + " in the journal: " + e.getLocalizedMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Schedules the validation of every pedigree in a FHIR bulk data NDJSON file, i.e. a file with one bundle per line.
+   * Lines are read as they are admitted, so only the bundles being validated are kept in memory. This method blocks
+   * until all the lines have been read, but not until they have been validated.
+   *
+   * @param file The NDJSON file.
+   * @param handler Receives the file name and line number, separated by a colon, and the validation result of each
+   *                line.
+   * @throws InterruptedException If interrupted while waiting for heap budget.
+   */
+  public void submitNdjson(File file, BiConsumer<String, ValidationResult> handler) throws InterruptedException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+      StandardCharsets.UTF_8), 1024 * 1024)) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isBlank()) {
+          continue;
+        }
+        final String json = line;
+        final String name = file.getPath() + ":" + lineNumber;
+        // A string in memory takes up to two bytes per character
+        long cost = estimateCost(2L * json.length(), countEntries(json));
+        schedule("line " + lineNumber + " of file " + file.getName(), cost, true, s -> s.validate(json, name),
+          vr -> handler.accept(name, vr));
+      }
+    } catch (IOException e) {
+      handler.accept(file.getPath(), fatal("Unable to read file " + file.getName() + ": "
+        + e.getLocalizedMessage()));
+    }
+  }
+
+  /**
+   * Schedules a validation that only reads the pedigree once it runs.
+   *
+   * @see #schedule(String, long, boolean, Validation, Consumer)
+   */
+  void schedule(String name, long cost, Validation validation, Consumer<ValidationResult> handler)
+    throws InterruptedException {
+    schedule(name, cost, false, validation, handler);
+  }
+
+  /**
+   * Schedules a validation. Pedigrees that fit in the parallel lane are scheduled once there is enough heap budget to
+   * admit them. Oversized pedigrees are queued for the serial lane straight away, unless the pedigree is already in
+   * memory and too many of those are queued.
+   *
+   * @param name A description of the pedigree, used in messages.
+   * @param cost The estimated heap needed to validate the pedigree, in bytes.
+   * @param inMemory True if the validation holds the pedigree in memory while it waits, e.g. an NDJSON line.
+   * @param validation The validation.
+   * @param handler Receives the validation result.
+   * @throws InterruptedException If interrupted while waiting for heap budget.
+   */
+  void schedule(String name, long cost, boolean inMemory, Validation validation, Consumer<ValidationResult> handler)
+    throws InterruptedException {
+    if (cost > oversizedThreshold) {
+      if (inMemory) {
+        oversizedInMemory.acquire();
+      }
+      synchronized (pendingLock) {
+        pending++;
+      }
+      log.info("The pedigree in " + name + " needs an estimated " + (cost / (1024 * 1024))
+        + " MB of heap and will be validated in the serial lane");
+      // The serial lane validates one pedigree at a time using the budget reserved for it
+      serialLane.execute(() -> {
+        try {
+          run(name, () -> validateOversized(validation), handler);
+        } finally {
+          if (inMemory) {
+            oversizedInMemory.release();
+          }
+          completed();
+        }
+      });
+      return;
+    }
+
+    final int permits = (int) Math.max(1, cost / 1024);
+    budget.acquire(permits);
+    synchronized (pendingLock) {
+      pending++;
+    }
+    parallelLane.execute(() -> {
+      try {
+        run(name, () -> validation.validate(service), handler);
+      } finally {
+        budget.release(permits);
+        completed();
+      }
+    });
+  }
+
+  private void run(String name, Callable<ValidationResult> validation, Consumer<ValidationResult> handler) {
+    ValidationResult vr;
+    try {
+      vr = validation.call();
+    } catch (Throwable t) {
+      log.error("There was a problem validating " + name + ": " + t.getLocalizedMessage());
+      vr = fatal("There was a problem validating " + name + ": " + t.getLocalizedMessage());
+    }
+    handler.accept(vr);
+  }
+
+  private void completed() {
+    synchronized (pendingLock) {
+      pending--;
+      pendingLock.notifyAll();
+    }
+  }
+
+  /**
+   * Sets the maximum number of distinct messages returned for each pedigree.
+   *
+   * @see ValidatorService#setMaxMessageGroups(int)
+   */
+  public void setMaxMessageGroups(int maxMessageGroups) {
+    service.setMaxMessageGroups(maxMessageGroups);
+  }
+
+  /**
+   * Registers another version of the Pedigree IG package.
+   *
+   * @see ValidatorService#registerIgPackage(String, String)
+   */
+  public void registerIgPackage(String version, String location) {
+    service.registerIgPackage(version, location);
+  }
+
+  /**
+   * Sets a recorder for pedigrees that are slow to validate.
+   *
+   * @see ValidatorService#setSlowValidationRecorder(SlowValidationRecorder)
+   */
+  public void setSlowValidationRecorder(SlowValidationRecorder slowValidationRecorder) {
+    service.setSlowValidationRecorder(slowValidationRecorder);
+  }
+
+  /**
+   * Sets a journal of completed validations, used to skip files that already passed validation and to record the
+   * outcome of the rest. Files are hashed by the worker threads.
+   */
+  public void setJournal(CompletionJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Sets a handler that is called from a worker thread for every file skipped because the journal shows it already
+   * passed validation, with the number of warnings recorded for it, e.g. to add it to a report.
+   */
+  public void setSkipHandler(BiConsumer<File, Long> skipHandler) {
+    this.skipHandler = skipHandler;
+  }
+
+  /**
+   * Returns the number of files skipped so far because the journal shows they already passed validation.
+   */
+  public int getSkippedCount() {
+    return skipped.get();
+  }
+
+  /**
+   * Blocks until all the submitted validations have completed.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public void awaitCompletion() throws InterruptedException {
+    synchronized (pendingLock) {
+      while (pending > 0) {
+        pendingLock.wait();
+      }
+    }
+  }
+
+  /**
+   * Waits for the submitted validations to complete and stops the worker threads. If interrupted while waiting, the
+   * validations that have not started are abandoned and the interrupt flag is restored. Use
+   * {@link #awaitCompletion()} to wait for the validations and handle the interrupt.
+   */
+  @Override
+  public void close() {
+    try {
+      awaitCompletion();
+      parallelLane.shutdown();
+      serialLane.shutdown();
+      parallelLane.awaitTermination(1, TimeUnit.MINUTES);
+      serialLane.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      parallelLane.shutdownNow();
+      serialLane.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the estimated heap, in bytes, needed to validate a pedigree.
+   *
+   * @param sizeBytes The size of the JSON representation of the pedigree.
+   * @param entries The number of entries in the pedigree bundle.
+   * @return The estimated heap in bytes.
+   */
+  long estimateCost(long sizeBytes, int entries) {
+    long cost = sizeBytes * HEAP_BYTES_PER_JSON_BYTE + entries * HEAP_BYTES_PER_ENTRY;
+    if (useReasoner) {
+      cost += entries * REASONER_HEAP_BYTES_PER_ENTRY;
+    }
+    return cost;
+  }
+
+  /**
+   * Estimates the number of entries in a pedigree bundle from the size of its FHIR JSON representation. Files are
+   * not scanned because the submitting thread would then read every file in the corpus.
+   */
+  static int estimateEntries(long sizeBytes) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(1, sizeBytes / JSON_BYTES_PER_ENTRY));
+  }
+
+  /**
+   * Counts the resources in a FHIR JSON string by scanning it for the resourceType property. This is much cheaper
+   * than parsing the string and good enough to estimate the number of entries in a bundle that is already in memory.
+   */
+  static int countEntries(String json) {
+    int count = 0;
+    int idx = json.indexOf(RESOURCE_TYPE);
+    while (idx != -1) {
+      count++;
+      idx = json.indexOf(RESOURCE_TYPE, idx + RESOURCE_TYPE.length());
+    }
+    return count;
+  }
+
+  private ValidationResult validateOversized(Validation validation) throws IOException {
+    // Only used from the serial lane, so this releases the serial lane's reasoner
+    try {
+      return validation.validate(service);
+    } finally {
+      service.releaseReasoner();
+    }
+  }
+
+  private ValidationResult fatal(String message) {
+    SingleValidationMessage msg = new SingleValidationMessage();
+    msg.setMessage(message);
+    msg.setSeverity(ResultSeverityEnum.FATAL);
+    return new ValidationResult(service.getFhirContext(), Collections.singletonList(msg));
+  }
+
+  /**
+   * The validation of a pedigree using a validator service.
+   */
+  interface Validation {
+    ValidationResult validate(ValidatorService service) throws IOException;
+  }
+}
@@ -37,136 +37,299 @@ public class ValidatorService {
   public static final IRI FH_IRI = IRI.create("http://purl.org/ga4gh/kin.owl#");
   public static String FH_PAT_REC_EXT = "http://hl7.org/fhir/StructureDefinition/familymemberhistory-patient-record";
 
+  /** The location of the Pedigree IG package bundled with the validator. */
+  public static final String BUNDLED_IG_PACKAGE = IgPackageRegistry.CLASSPATH_PREFIX + "package.tgz";
+
+  /** The version of the Pedigree IG package bundled with the validator, as declared in its package.json file. */
+  public static final String BUNDLED_IG_VERSION = readBundledIgVersion();
+
   private final FhirContext ctx;
-  private final FhirValidator validator;
-  private OWLOntologyManager manager;
-  private OWLOntology fhOntology;
-  private OWLDataFactory dataFactory;
-  private OWLReasonerFactory reasonerFactory = null;
-  private OWLReasoner reasoner;
+  private final DefaultProfileValidationSupport defaultProfileSupport;
+  private final RemoteTerminologyServiceValidationSupport terminologyValidationSupport;
+  private final UnknownCodeSystemWarningValidationSupport unknownCodeSystemSupport;
+  private final IgPackageRegistry igPackages;
+  private final OWLDataFactory dataFactory = OWLManager.getOWLDataFactory();
+  private final OWLReasonerFactory reasonerFactory = new JFactFactory();
+  /** The reasoner is not thread safe, so each thread that validates pedigrees gets its own. */
+  private final ThreadLocal<KinReasoner> reasoners = new ThreadLocal<>();
   private final boolean useReasoner;
+  private int maxMessageGroups = 0;
+  private SlowValidationRecorder slowValidationRecorder = null;
 
   public ValidatorService(boolean useReasoner, String terminologyServer) {
     this.ctx = FhirContext.forR4();
     this.useReasoner = useReasoner;
 
-    try {
-      log.info("Initialising validator");
-      NpmPackageValidationSupport npmPackageSupport = new NpmPackageValidationSupport(ctx);
-      npmPackageSupport.loadPackageFromClasspath("package.tgz");
-
-      RemoteTerminologyServiceValidationSupport terminologyValidationSupport = null;
-      if (terminologyServer != null) {
-        terminologyValidationSupport = new RemoteTerminologyServiceValidationSupport(ctx);
-        terminologyValidationSupport.setBaseUrl(terminologyServer);
-      }
-      UnknownCodeSystemWarningValidationSupport unknown = new UnknownCodeSystemWarningValidationSupport(ctx);
-      unknown.setAllowNonExistentCodeSystem(true);
-
-      // Create a support chain including the NPM Package Support
-      ValidationSupportChain validationSupportChain = null;
-      if (terminologyValidationSupport != null) {
-        validationSupportChain = new ValidationSupportChain(
-          new DefaultProfileValidationSupport(ctx),
-          terminologyValidationSupport,
-          new InMemoryTerminologyServerValidationSupport(ctx),
-          npmPackageSupport,
-          new SnapshotGeneratingValidationSupport(ctx),
-          unknown
-        );
-      } else {
-        validationSupportChain = new ValidationSupportChain(
-          new DefaultProfileValidationSupport(ctx),
-          new InMemoryTerminologyServerValidationSupport(ctx),
-          npmPackageSupport,
-          new SnapshotGeneratingValidationSupport(ctx),
-          unknown
-        );
-      }
-      CachingValidationSupport validationSupport = new CachingValidationSupport(validationSupportChain);
+    log.info("Initialising validator");
+    this.defaultProfileSupport = new DefaultProfileValidationSupport(ctx);
+    if (terminologyServer != null) {
+      this.terminologyValidationSupport = new RecordingTerminologyServiceValidationSupport(ctx);
+      terminologyValidationSupport.setBaseUrl(terminologyServer);
+    } else {
+      this.terminologyValidationSupport = null;
+    }
+    this.unknownCodeSystemSupport = new UnknownCodeSystemWarningValidationSupport(ctx);
+    unknownCodeSystemSupport.setAllowNonExistentCodeSystem(true);
 
-      this.validator = ctx.newValidator();
-      FhirInstanceValidator instanceValidator = new FhirInstanceValidator(validationSupport);
-      validator.registerValidatorModule(instanceValidator);
-      log.info("Done");
+    // IG packages are loaded lazily, when a pedigree first needs them
+    this.igPackages = new IgPackageRegistry(ctx, this::createValidator, IgPackageRegistry.DEFAULT_MAX_LOADED_VERSIONS);
+    igPackages.register(BUNDLED_IG_VERSION, BUNDLED_IG_PACKAGE);
+    log.info("Done");
+  }
+
+  /**
+   * Creates a FHIR validator for a version of the Pedigree IG. The core profiles, terminology server and unknown code
+   * system supports are shared by all versions.
+   */
+  private FhirValidator createValidator(NpmPackageValidationSupport npmPackageSupport) {
+    // Create a support chain including the NPM Package Support
+    ValidationSupportChain validationSupportChain = null;
+    if (terminologyValidationSupport != null) {
+      validationSupportChain = new ValidationSupportChain(
+        defaultProfileSupport,
+        terminologyValidationSupport,
+        new InMemoryTerminologyServerValidationSupport(ctx),
+        npmPackageSupport,
+        new SnapshotGeneratingValidationSupport(ctx),
+        unknownCodeSystemSupport
+      );
+    } else {
+      validationSupportChain = new ValidationSupportChain(
+        defaultProfileSupport,
+        new InMemoryTerminologyServerValidationSupport(ctx),
+        npmPackageSupport,
+        new SnapshotGeneratingValidationSupport(ctx),
+        unknownCodeSystemSupport
+      );
+    }
+    CachingValidationSupport validationSupport = new CachingValidationSupport(validationSupportChain);
+
+    FhirValidator validator = ctx.newValidator();
+    FhirInstanceValidator instanceValidator = new FhirInstanceValidator(validationSupport);
+    validator.registerValidatorModule(instanceValidator);
+    return validator;
+  }
+
+  private static String readBundledIgVersion() {
+    try {
+      return IgPackageRegistry.readVersion(BUNDLED_IG_PACKAGE);
     } catch (IOException e) {
-      throw new RuntimeException(e);
+      throw new UncheckedIOException("Unable to read the version of the bundled Pedigree IG package", e);
     }
   }
 
   public ValidationResult validate(Bundle pedigree) {
-    // Validate using FHIR validator
-    ValidationResult vr =  validator.validateWithResult(pedigree);
-
-    // Validate using reasoner
-    if (useReasoner) {
-      if (reasoner == null) {
-        log.info("Initialising reasoner");
-        initResoner();
-        log.info("Done");
+    return validate(pedigree, null, System.nanoTime());
+  }
+
+  private ValidationResult validate(Bundle pedigree, String fileName, long start) {
+    // Loading an IG package or initialising the reasoner, or waiting for another thread to load the package, is not
+    // part of the time it takes to validate the pedigree
+    long setupStart = System.nanoTime();
+    String declaredVersion = IgPackageRegistry.getVersion(pedigree);
+    String version = igPackages.resolveVersion(declaredVersion);
+    FhirValidator validator = igPackages.getValidator(version);
+    KinReasoner kin = useReasoner ? getReasoner() : null;
+    long setupNanos = System.nanoTime() - setupStart;
+
+    // The profiles are validated against the package for the resolved version, so the version in their URLs has to
+    // go, otherwise the validator looks for a profile the package does not have when the versions are different
+    Map<CanonicalType, String> versionedProfiles = stripIgVersions(pedigree);
+    ValidationResult vr;
+    try {
+      vr = doValidate(pedigree, fileName, validator, kin);
+    } finally {
+      versionedProfiles.forEach(CanonicalType::setValue);
+    }
+    if (slowValidationRecorder != null) {
+      slowValidationRecorder.check(fileName, System.nanoTime() - start - setupNanos, pedigree, ctx);
+    }
+
+    if (declaredVersion != null && !declaredVersion.equals(version)) {
+      List<SingleValidationMessage> allMessages = new ArrayList<>(vr.getMessages());
+      SingleValidationMessage versionMessage = new SingleValidationMessage();
+      versionMessage.setMessage("The pedigree refers to version " + declaredVersion + " of the Pedigree IG, which is "
+        + "not available, so it was validated against version " + version);
+      versionMessage.setSeverity(ResultSeverityEnum.WARNING);
+      versionMessage.setLocationCol(0);
+      versionMessage.setLocationLine(0);
+      allMessages.add(versionMessage);
+      vr = new ValidationResult(ctx, allMessages);
+    }
+    return vr;
+  }
+
+  /**
+   * Removes the version from the Pedigree IG profiles of a pedigree and of the resources in its entries.
+   *
+   * @return The profiles that were changed and their original values.
+   */
+  private static Map<CanonicalType, String> stripIgVersions(Bundle pedigree) {
+    Map<CanonicalType, String> res = new IdentityHashMap<>();
+    stripIgVersions(pedigree, res);
+    for (Bundle.BundleEntryComponent entry : pedigree.getEntry()) {
+      if (entry.hasResource()) {
+        stripIgVersions(entry.getResource(), res);
       }
+    }
+    return res;
+  }
 
-      // Build OWL graph based on FHIR model
-      manager.addAxioms(fhOntology, fhirToOwl(pedigree).stream());
-
-      // Flush, classify and check consistency
-      reasoner.flush();
-      reasoner.precomputeInferences();
-
-      if (!reasoner.isConsistent()) {
-        InconsistentOntologyExplanationGeneratorFactory genFac
-          = new InconsistentOntologyExplanationGeneratorFactory(
-          reasonerFactory,
-          dataFactory,
-          this::getOntologyManager,
-          9223372036854775807L
-        );
-        ExplanationGenerator<OWLAxiom> gen = genFac.createExplanationGenerator(fhOntology);
-        OWLAxiom ax = dataFactory.getOWLSubClassOfAxiom(dataFactory.getOWLThing(), dataFactory.getOWLNothing());
-        StringBuilder sb = new StringBuilder();
-        Set<Explanation<OWLAxiom>> explanations = gen.getExplanations(ax, 5);
-        for (Explanation<OWLAxiom> explanation : explanations) {
-          int i = 1;
-          for(OWLAxiom justification : explanation.getAxioms()) {
-            sb.append(" - ");
-            sb.append(justification.toString());
-            sb.append(System.lineSeparator());
-          }
-        }
+  private static void stripIgVersions(Resource resource, Map<CanonicalType, String> res) {
+    if (!resource.hasMeta()) {
+      return;
+    }
+    for (CanonicalType profile : resource.getMeta().getProfile()) {
+      String url = profile.getValue();
+      if (url != null && url.startsWith(IgPackageRegistry.IG_CANONICAL) && url.indexOf('|') != -1) {
+        res.put(profile, url);
+        profile.setValue(url.substring(0, url.indexOf('|')));
+      }
+    }
+  }
 
-        List<SingleValidationMessage> allMessages = new ArrayList<>(vr.getMessages());
-        SingleValidationMessage reasonerMessage = new SingleValidationMessage();
-        reasonerMessage.setMessage("The pedigree is inconsistent:" + System.lineSeparator() + sb.toString().trim());
-        reasonerMessage.setSeverity(ResultSeverityEnum.ERROR);
-        reasonerMessage.setLocationCol(0);
-        reasonerMessage.setLocationLine(0);
-        allMessages.add(reasonerMessage);
+  private ValidationResult doValidate(Bundle pedigree, String fileName, FhirValidator validator, KinReasoner kin) {
+    int entries = pedigree.getEntry().size();
+
+    // Validate using FHIR validator
+    ValidationResult vr;
+    TerminologyCallEvent.currentFileName.set(fileName);
+    ValidationPhaseEvent event = ValidationPhaseEvent.start(ValidationPhaseEvent.INSTANCE_VALIDATION, fileName,
+      entries);
+    try {
+      vr =  validator.validateWithResult(pedigree);
+    } finally {
+      event.commit();
+      TerminologyCallEvent.currentFileName.remove();
+    }
+    if (maxMessageGroups > 0) {
+      MessageAggregator aggregator = new MessageAggregator(maxMessageGroups, MessageAggregator.DEFAULT_MAX_LOCATIONS);
+      aggregator.addAll(vr.getMessages());
+      vr = new ValidationResult(ctx, aggregator.getMessages());
+    }
 
-        return new ValidationResult(ctx, allMessages);
+    // Validate using reasoner. The pedigree axioms are removed afterwards so the next pedigree validated by this
+    // thread starts from a clean ontology.
+    if (kin != null) {
+      // Build OWL graph based on FHIR model
+      event = ValidationPhaseEvent.start(ValidationPhaseEvent.FHIR_TO_OWL, fileName, entries);
+      Set<OWLAxiom> pedigreeAxioms = fhirToOwl(pedigree);
+      kin.manager.addAxioms(kin.ontology, pedigreeAxioms.stream());
+      event.commit();
+      try {
+        return checkConsistency(vr, kin, fileName, entries);
+      } finally {
+        kin.manager.removeAxioms(kin.ontology, pedigreeAxioms.stream());
+        kin.reasoner.flush();
       }
     }
 
     return vr;
   }
 
+  private ValidationResult checkConsistency(ValidationResult vr, KinReasoner kin, String fileName, int entries) {
+    // Flush, classify and check consistency
+    ValidationPhaseEvent event = ValidationPhaseEvent.start(ValidationPhaseEvent.CLASSIFICATION, fileName, entries);
+    kin.reasoner.flush();
+    kin.reasoner.precomputeInferences();
+    boolean consistent = kin.reasoner.isConsistent();
+    event.commit();
+
+    if (!consistent) {
+      event = ValidationPhaseEvent.start(ValidationPhaseEvent.EXPLANATION, fileName, entries);
+      InconsistentOntologyExplanationGeneratorFactory genFac
+        = new InconsistentOntologyExplanationGeneratorFactory(
+        reasonerFactory,
+        dataFactory,
+        () -> kin.manager,
+        9223372036854775807L
+      );
+      ExplanationGenerator<OWLAxiom> gen = genFac.createExplanationGenerator(kin.ontology);
+      OWLAxiom ax = dataFactory.getOWLSubClassOfAxiom(dataFactory.getOWLThing(), dataFactory.getOWLNothing());
+      StringBuilder sb = new StringBuilder();
+      Set<Explanation<OWLAxiom>> explanations = gen.getExplanations(ax, 5);
+      for (Explanation<OWLAxiom> explanation : explanations) {
+        int i = 1;
+        for(OWLAxiom justification : explanation.getAxioms()) {
+          sb.append(" - ");
+          sb.append(justification.toString());
+          sb.append(System.lineSeparator());
+        }
+      }
+      event.commit();
+
+      List<SingleValidationMessage> allMessages = new ArrayList<>(vr.getMessages());
+      SingleValidationMessage reasonerMessage = new SingleValidationMessage();
+      reasonerMessage.setMessage("The pedigree is inconsistent:" + System.lineSeparator() + sb.toString().trim());
+      reasonerMessage.setSeverity(ResultSeverityEnum.ERROR);
+      reasonerMessage.setLocationCol(0);
+      reasonerMessage.setLocationLine(0);
+      allMessages.add(reasonerMessage);
+
+      return new ValidationResult(ctx, allMessages);
+    }
+    return vr;
+  }
+
   public ValidationResult validate(File pedigreeFile) throws IOException {
+    return validateAndParse(pedigreeFile).getResult();
+  }
+
+  /**
+   * Validates a pedigree file and keeps the parsed pedigree if it passes, e.g. to compute kinship coefficients with
+   * {@link ValidatedPedigree#getKinshipAnalyzer()} without parsing the file again.
+   *
+   * @param pedigreeFile The pedigree file.
+   * @return The validation result and, if the pedigree passed, the parsed pedigree.
+   * @throws IOException If the file cannot be read.
+   */
+  public ValidatedPedigree validateAndParse(File pedigreeFile) throws IOException {
     log.info("Validating file " + pedigreeFile.getName());
+    try(FileReader fr = new FileReader(pedigreeFile)) {
+      return validate(fr, pedigreeFile.getName(), "File " + pedigreeFile.getName());
+    }
+  }
+
+  /**
+   * Validates a pedigree in FHIR JSON format, e.g. a line of a FHIR bulk data NDJSON file.
+   *
+   * @param json The pedigree.
+   * @param name A name for the pedigree, used in messages and flight recorder events.
+   * @return The validation result.
+   */
+  public ValidationResult validate(String json, String name) {
+    return validateAndParse(json, name).getResult();
+  }
+
+  /**
+   * Validates a pedigree in FHIR JSON format and keeps the parsed pedigree if it passes.
+   *
+   * @param json The pedigree.
+   * @param name A name for the pedigree, used in messages and flight recorder events.
+   * @return The validation result and, if the pedigree passed, the parsed pedigree.
+   */
+  public ValidatedPedigree validateAndParse(String json, String name) {
+    return validate(new StringReader(json), name, name);
+  }
+
+  private ValidatedPedigree validate(Reader reader, String name, String description) {
+    long start = System.nanoTime();
 
     // Load pedigree bundle
-    Bundle pedigree = null;
-    try(FileReader fr = new FileReader(pedigreeFile)) {
-      IBaseResource res = ctx.newJsonParser().parseResource(fr);
-      if (res instanceof Bundle) {
-        pedigree = (Bundle) res;
-      } else {
-        SingleValidationMessage msg = new SingleValidationMessage();
-        msg.setMessage("File " + pedigreeFile.getName() + " does not seem to contain a pedigree (resource type is "
-          + res.fhirType() + " but should be Composition");
-        msg.setSeverity(ResultSeverityEnum.FATAL);
-        return new ValidationResult(ctx, Collections.singletonList(msg));
-      }
+    ValidationPhaseEvent event = ValidationPhaseEvent.start(ValidationPhaseEvent.PARSE, name, 0);
+    IBaseResource res = ctx.newJsonParser().parseResource(reader);
+    if (res instanceof Bundle) {
+      event.entries = ((Bundle) res).getEntry().size();
     }
-    return validate(pedigree);
+    event.commit();
+    if (!(res instanceof Bundle)) {
+      SingleValidationMessage msg = new SingleValidationMessage();
+      msg.setMessage(description + " does not seem to contain a pedigree (resource type is "
+        + res.fhirType() + " but should be Composition");
+      msg.setSeverity(ResultSeverityEnum.FATAL);
+      return new ValidatedPedigree(new ValidationResult(ctx, Collections.singletonList(msg)), null);
+    }
+    return new ValidatedPedigree(validate((Bundle) res, name, start), (Bundle) res);
   }
 
   public Set<OWLAxiom> fhirToOwl(Bundle pedigree) {
@@ -196,7 +359,7 @@ public class ValidatorService {
     return axioms;
   }
 
-  private Map<String, Patient> getPatients(Bundle b) {
+  static Map<String, Patient> getPatients(Bundle b) {
     Map<String, Patient> patients = new HashMap<>();
     for (Bundle.BundleEntryComponent bec : b.getEntry()) {
       if(bec.hasResource()) {
@@ -213,7 +376,7 @@ public class ValidatorService {
     return patients;
   }
 
-  private List<FamilyMemberHistory> getRelationships(Bundle b) {
+  static List<FamilyMemberHistory> getRelationships(Bundle b) {
     List<FamilyMemberHistory> rels = new ArrayList<>();
     for (Bundle.BundleEntryComponent bec : b.getEntry()) {
       if(bec.hasResource()) {
@@ -230,18 +393,27 @@ public class ValidatorService {
     return rels;
   }
 
-  private void initResoner() {
-    try {
-      this.reasonerFactory = new JFactFactory();
-      this.manager = OWLManager.createOWLOntologyManager();
-      this.dataFactory = manager.getOWLDataFactory();
-      try (InputStream is = getFileFromResourceAsStream("kin.owl")) {
-        this.fhOntology = manager.loadOntologyFromOntologyDocument(is);
+  /**
+   * Returns the reasoner of the current thread, initialising it if necessary.
+   */
+  private KinReasoner getReasoner() {
+    KinReasoner kin = reasoners.get();
+    if (kin == null) {
+      log.info("Initialising reasoner");
+      try {
+        OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+        OWLOntology ontology;
+        try (InputStream is = getFileFromResourceAsStream("kin.owl")) {
+          ontology = manager.loadOntologyFromOntologyDocument(is);
+        }
+        kin = new KinReasoner(manager, ontology, reasonerFactory.createReasoner(ontology));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
       }
-      reasoner = reasonerFactory.createReasoner(fhOntology);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+      reasoners.set(kin);
+      log.info("Done");
     }
+    return kin;
   }
 
   private InputStream getFileFromResourceAsStream(String fileName) {
@@ -255,8 +427,62 @@ public class ValidatorService {
     }
   }
 
+  /**
+   * Disposes of the reasoner and the loaded KIN ontology of the current thread so the memory they hold can be
+   * reclaimed. The reasoner is initialised again the next time the current thread validates a pedigree.
+   */
+  public void releaseReasoner() {
+    KinReasoner kin = reasoners.get();
+    if (kin != null) {
+      kin.reasoner.dispose();
+      reasoners.remove();
+    }
+  }
+
+  /**
+   * Sets the maximum number of distinct messages returned for each pedigree. When set, similar messages are grouped
+   * into a single message with a count and a sample of their locations, see {@link MessageAggregator}. This caps the
+   * size of the results, not the peak heap of each validation. A value of zero, the default, returns every message.
+   */
+  public void setMaxMessageGroups(int maxMessageGroups) {
+    this.maxMessageGroups = maxMessageGroups;
+  }
+
+  /**
+   * Sets a recorder that captures a flight recording and the bundle of every pedigree that is slow to validate, or
+   * null to disable it.
+   */
+  public void setSlowValidationRecorder(SlowValidationRecorder slowValidationRecorder) {
+    this.slowValidationRecorder = slowValidationRecorder;
+  }
+
+  /**
+   * Registers another version of the Pedigree IG package. The package is only loaded when a pedigree refers to this
+   * version in its profile. Pedigrees that refer to a version that has not been registered are validated against the
+   * bundled version, with a warning.
+   *
+   * @param version The version of the IG.
+   * @param location The path to the package.tgz file, or its location in the classpath prefixed with "classpath:".
+   */
+  public void registerIgPackage(String version, String location) {
+    igPackages.register(version, location);
+  }
+
+  public boolean isUseReasoner() {
+    return useReasoner;
+  }
+
+  public FhirContext getFhirContext() {
+    return ctx;
+  }
+
+  /**
+   * Returns the ontology manager of the current thread's reasoner, or null if the current thread has not used the
+   * reasoner yet.
+   */
   public OWLOntologyManager getOntologyManager() {
-    return this.manager;
+    KinReasoner kin = reasoners.get();
+    return (kin != null) ? kin.manager : null;
   }
 
   private OWLClass getNamedClass(String id) {
@@ -270,4 +496,19 @@ public class ValidatorService {
   private OWLNamedIndividual getNamedIndividual(String id) {
     return dataFactory.getOWLNamedIndividual(IRI.create(FH_IRI + id));
   }
+
+  /**
+   * A reasoner over its own copy of the KIN ontology.
+   */
+  private static class KinReasoner {
+    private final OWLOntologyManager manager;
+    private final OWLOntology ontology;
+    private final OWLReasoner reasoner;
+
+    private KinReasoner(OWLOntologyManager manager, OWLOntology ontology, OWLReasoner reasoner) {
+      this.manager = manager;
+      this.ontology = ontology;
+      this.reasoner = reasoner;
+    }
+  }
 }
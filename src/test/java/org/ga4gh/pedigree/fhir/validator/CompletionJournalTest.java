@@ -0,0 +1,115 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class CompletionJournalTest {
+
+  @TempDir
+  File tempDir;
+
+  @Test
+  public void testUnterminatedLastLineIsIgnored() throws IOException {
+    File journalFile = new File(tempDir, "journal.tsv");
+    File a = new File(tempDir, "a.json");
+    File b = new File(tempDir, "b.json");
+    File c = new File(tempDir, "c.json");
+
+    // The process crashed while appending the entry for b
+    String content = "hashA\tfp\tPASSED\t0\t" + a.getAbsolutePath() + "\n"
+      + "hashB\tfp\tPASSED\t0\t" + b.getAbsolutePath();
+    Files.write(journalFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+    try (CompletionJournal journal = new CompletionJournal(journalFile, "fp")) {
+      assertTrue(journal.isComplete(a, "hashA"));
+      assertFalse(journal.isComplete(b, "hashB"));
+      journal.record(c, "hashC", ValidationOutcome.PASSED, 2);
+    }
+
+    // The partial line is terminated so the new entry starts on its own line
+    List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+    assertEquals(3, lines.size());
+    assertEquals("hashC\tfp\tPASSED\t2\t" + c.getAbsolutePath(), lines.get(2));
+
+    try (CompletionJournal journal = new CompletionJournal(journalFile, "fp")) {
+      assertTrue(journal.isComplete(a, "hashA"));
+      assertTrue(journal.isComplete(c, "hashC"));
+      // The warnings are kept so skipped files can still be reported
+      assertEquals(2, journal.getWarnings(c));
+      assertEquals(0, journal.getWarnings(b));
+    }
+  }
+
+  @Test
+  public void testOnlyPassedFilesWithSameContentAreSkipped() throws IOException {
+    File journalFile = new File(tempDir, "journal.tsv");
+    File passed = new File(tempDir, "passed.json");
+    File failed = new File(tempDir, "failed.json");
+    File error = new File(tempDir, "error.json");
+    File fixed = new File(tempDir, "fixed.json");
+    File broken = new File(tempDir, "broken.json");
+
+    try (CompletionJournal journal = new CompletionJournal(journalFile, "fp")) {
+      journal.record(passed, "hash", ValidationOutcome.PASSED, 0);
+      journal.record(failed, "hash", ValidationOutcome.FAILED, 0);
+      journal.record(error, "hash", ValidationOutcome.ERROR, 0);
+      journal.record(fixed, "old", ValidationOutcome.FAILED, 0);
+      journal.record(fixed, "new", ValidationOutcome.PASSED, 0);
+      journal.record(broken, "old", ValidationOutcome.PASSED, 0);
+      journal.record(broken, "new", ValidationOutcome.FAILED, 0);
+    }
+
+    try (CompletionJournal journal = new CompletionJournal(journalFile, "fp")) {
+      assertTrue(journal.isComplete(passed, "hash"));
+      assertFalse(journal.isComplete(passed, "changed"));
+      assertFalse(journal.isComplete(failed, "hash"));
+      assertFalse(journal.isComplete(error, "hash"));
+      assertTrue(journal.isComplete(fixed, "new"));
+      assertFalse(journal.isComplete(broken, "old"));
+      assertFalse(journal.isComplete(broken, "new"));
+    }
+  }
+
+  @Test
+  public void testFilesAreRetriedWhenFingerprintChanges() throws IOException {
+    File journalFile = new File(tempDir, "journal.tsv");
+    File a = new File(tempDir, "a.json");
+    String fingerprint = CompletionJournal.fingerprint("false", null, "{}");
+    String otherFingerprint = CompletionJournal.fingerprint("true", null, "{}");
+    assertNotEquals(fingerprint, otherFingerprint);
+
+    try (CompletionJournal journal = new CompletionJournal(journalFile, fingerprint)) {
+      journal.record(a, "hash", ValidationOutcome.PASSED, 0);
+    }
+    try (CompletionJournal journal = new CompletionJournal(journalFile, otherFingerprint)) {
+      assertFalse(journal.isComplete(a, "hash"));
+    }
+    try (CompletionJournal journal = new CompletionJournal(journalFile, fingerprint)) {
+      assertTrue(journal.isComplete(a, "hash"));
+    }
+  }
+
+  @Test
+  public void testHash() throws IOException {
+    File a = new File(tempDir, "a.json");
+    File b = new File(tempDir, "b.json");
+    Files.write(a.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+    Files.write(b.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+    assertEquals(CompletionJournal.hash(a), CompletionJournal.hash(b));
+
+    Files.write(b.toPath(), "{ }".getBytes(StandardCharsets.UTF_8));
+    assertNotEquals(CompletionJournal.hash(a), CompletionJournal.hash(b));
+  }
+}
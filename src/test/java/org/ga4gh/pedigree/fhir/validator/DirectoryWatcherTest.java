@@ -0,0 +1,200 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ValidationResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class DirectoryWatcherTest {
+
+  private static final long DEBOUNCE_MILLIS = 200;
+
+  @TempDir
+  File tempDir;
+
+  private RecordingScheduler scheduler;
+  private Thread watcherThread;
+
+  @BeforeEach
+  public void setUp() {
+    scheduler = new RecordingScheduler();
+  }
+
+  @AfterEach
+  public void tearDown() throws InterruptedException {
+    if (watcherThread != null) {
+      watcherThread.interrupt();
+      watcherThread.join(10000);
+    }
+    scheduler.close();
+  }
+
+  @Test
+  public void testFilesInSubFolders() throws IOException, InterruptedException {
+    File existing = new File(tempDir, "family-1" + File.separator + "pedigree.json");
+    write(existing, "{}");
+    startWatcher();
+    assertEquals(existing.getPath(), scheduler.next());
+
+    // Folders created after the watcher started are watched as well
+    File created = new File(tempDir, "family-2" + File.separator + "export" + File.separator + "pedigrees.ndjson");
+    write(created, "{}");
+    assertEquals("ndjson " + created.getPath(), scheduler.next());
+    assertNull(scheduler.next(1000));
+  }
+
+  @Test
+  public void testDebounceAndUnchangedFiles() throws IOException, InterruptedException {
+    startWatcher();
+
+    // A file that is still being written is only submitted once it settles
+    File file = new File(tempDir, "pedigree.json");
+    for (int i = 0; i < 5; i++) {
+      write(file, "{\"version\": " + i + "}");
+      Thread.sleep(DEBOUNCE_MILLIS / 4);
+    }
+    assertEquals(file.getPath(), scheduler.next());
+    assertNull(scheduler.next(1000));
+
+    // Rewriting the same content does not validate the file again
+    write(file, "{\"version\": 4}");
+    assertNull(scheduler.next(1000));
+
+    write(file, "{\"version\": 5}");
+    assertEquals(file.getPath(), scheduler.next());
+  }
+
+  @Test
+  public void testFoldersThatDisappear() throws IOException, InterruptedException {
+    startWatcher();
+
+    for (int i = 0; i < 20; i++) {
+      File folder = new File(tempDir, "transient-" + i);
+      File file = new File(folder, "pedigree.json");
+      write(file, "{}");
+      Files.delete(file.toPath());
+      Files.delete(folder.toPath());
+    }
+
+    File file = new File(tempDir, "pedigree.json");
+    write(file, "{}");
+    String next = scheduler.next();
+    while (next != null && !next.equals(file.getPath())) {
+      next = scheduler.next();
+    }
+    assertEquals(file.getPath(), next);
+    assertTrue(watcherThread.isAlive());
+  }
+
+  @Test
+  public void testWatcherThreadIsNotBlockedBySubmissions() throws IOException, InterruptedException {
+    CountDownLatch admitted = new CountDownLatch(1);
+    scheduler.admission = admitted;
+    startWatcher();
+
+    // The scheduler does not admit the first file, e.g. because the heap budget is used up
+    File first = new File(tempDir, "first.ndjson");
+    write(first, "{}");
+    assertEquals("ndjson " + first.getPath(), scheduler.next());
+
+    File second = new File(tempDir, "second.json");
+    write(second, "{}");
+    Thread.sleep(3 * DEBOUNCE_MILLIS);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (watcherThread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.TIMED_WAITING, watcherThread.getState());
+    assertFalse(scheduler.threads.contains(watcherThread));
+
+    admitted.countDown();
+    assertEquals(second.getPath(), scheduler.next());
+  }
+
+  private void startWatcher() throws InterruptedException {
+    DirectoryWatcher watcher = new DirectoryWatcher(tempDir, scheduler, DEBOUNCE_MILLIS, (name, vr) -> {});
+    watcherThread = new Thread(() -> {
+      try {
+        watcher.run();
+      } catch (IOException | InterruptedException e) {
+        // Stopped
+      }
+    });
+    watcherThread.start();
+    // Give the watcher time to register the folders
+    Thread.sleep(DEBOUNCE_MILLIS);
+  }
+
+  private static void write(File file, String content) throws IOException {
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Records the files submitted for validation instead of validating them.
+   */
+  private static class RecordingScheduler extends ValidationScheduler {
+    private final BlockingQueue<String> submitted = new LinkedBlockingQueue<>();
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private volatile CountDownLatch admission = null;
+
+    private RecordingScheduler() {
+      super(false, null, 1, 64 * 1024 * 1024);
+    }
+
+    @Override
+    public void submit(File file, Predicate<String> filter, BiConsumer<File, ValidationResult> handler)
+      throws InterruptedException {
+      admit();
+      try {
+        // Done by the worker in the real scheduler
+        if (filter.test(CompletionJournal.hash(file))) {
+          submitted.add(file.getPath());
+        }
+      } catch (IOException e) {
+        // Deleted in the meantime
+      }
+    }
+
+    @Override
+    public void submitNdjson(File file, BiConsumer<String, ValidationResult> handler) throws InterruptedException {
+      submitted.add("ndjson " + file.getPath());
+      admit();
+    }
+
+    private void admit() throws InterruptedException {
+      threads.add(Thread.currentThread());
+      if (admission != null) {
+        admission.await();
+      }
+    }
+
+    private String next() throws InterruptedException {
+      return next(10000);
+    }
+
+    private String next(long timeoutMillis) throws InterruptedException {
+      return submitted.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class IgPackageRegistryTest {
+
+  private static final FhirContext ctx = FhirContext.forR4();
+
+  private static final String PACKAGE = IgPackageRegistry.CLASSPATH_PREFIX + "package.tgz";
+
+  @Test
+  public void testPackagesAreLoadedLazily() {
+    AtomicInteger loads = new AtomicInteger();
+    IgPackageRegistry registry = createRegistry(loads, 2);
+    assertEquals(0, loads.get());
+
+    FhirValidator validator = registry.getValidator("1.0.0");
+    assertEquals(1, loads.get());
+    assertSame(validator, registry.getValidator("1.0.0"));
+    assertEquals(1, loads.get());
+
+    // Registering a version again discards the loaded package
+    registry.register("1.0.0", PACKAGE);
+    assertNotSame(validator, registry.getValidator("1.0.0"));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedVersionIsEvicted() {
+    AtomicInteger loads = new AtomicInteger();
+    IgPackageRegistry registry = createRegistry(loads, 2);
+
+    FhirValidator v1 = registry.getValidator("1.0.0");
+    FhirValidator v2 = registry.getValidator("2.0.0");
+    assertEquals(2, loads.get());
+
+    // Using version 1.0.0 makes version 2.0.0 the least recently used one
+    assertSame(v1, registry.getValidator("1.0.0"));
+    registry.getValidator("3.0.0");
+    assertEquals(3, loads.get());
+
+    assertSame(v1, registry.getValidator("1.0.0"));
+    assertEquals(3, loads.get());
+    assertNotSame(v2, registry.getValidator("2.0.0"));
+    assertEquals(4, loads.get());
+  }
+
+  @Test
+  public void testResolveVersion() {
+    IgPackageRegistry registry = createRegistry(new AtomicInteger(), 2);
+    assertEquals("2.0.0", registry.resolveVersion("2.0.0"));
+    assertEquals("1.0.0", registry.resolveVersion("9.9.9"));
+    assertEquals("1.0.0", registry.resolveVersion(null));
+    assertThrows(IllegalArgumentException.class, () -> registry.getValidator("9.9.9"));
+
+    Bundle pedigree = new Bundle();
+    assertNull(IgPackageRegistry.getVersion(pedigree));
+    pedigree.getMeta().addProfile("http://example.org/StructureDefinition/Other|4.0.0");
+    assertNull(IgPackageRegistry.getVersion(pedigree));
+    pedigree.getMeta().addProfile(IgPackageRegistry.IG_CANONICAL + "StructureDefinition/Pedigree|2.0.0");
+    assertEquals("2.0.0", IgPackageRegistry.getVersion(pedigree));
+  }
+
+  @Test
+  public void testReadVersion() throws IOException {
+    assertEquals("0.1.0", IgPackageRegistry.readVersion(PACKAGE));
+    assertEquals(ValidatorService.BUNDLED_IG_VERSION, IgPackageRegistry.readVersion(PACKAGE));
+    assertThrows(IOException.class, () -> IgPackageRegistry.readVersion(IgPackageRegistry.CLASSPATH_PREFIX
+      + "missing.tgz"));
+  }
+
+  private static IgPackageRegistry createRegistry(AtomicInteger loads, int maxLoadedVersions) {
+    IgPackageRegistry registry = new IgPackageRegistry(ctx, npmPackageSupport -> {
+      loads.incrementAndGet();
+      return ctx.newValidator();
+    }, maxLoadedVersions);
+    registry.register("1.0.0", PACKAGE);
+    registry.register("2.0.0", PACKAGE);
+    registry.register("3.0.0", PACKAGE);
+    return registry;
+  }
+}
@@ -0,0 +1,183 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.FamilyMemberHistory;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class KinshipAnalyzerTest {
+
+  private static final double DELTA = 1e-12;
+
+  private static final String ALISON = "urn:uuid:1dcc871b-8899-441e-b39b-03b96738e6dd";
+  private static final String ALISON_MOTHER = "urn:uuid:b317d1eb-1f24-4b45-b5e0-90fbc7960fce";
+  private static final String ALISON_FATHER = "urn:uuid:ebd73526-1597-47a4-a767-c462ef4e088c";
+  private static final String LONLEY = "urn:uuid:7fa8ce56-b984-452b-97bc-72d3e730223a";
+  private static final String LIBBY = "urn:uuid:f977dfbb-70d5-4f9b-b125-5c60af199d3c";
+  private static final String HALF_SIBLING = "urn:uuid:abfc1148-6949-4bc8-ad97-f191c4d4cb7c";
+
+  /**
+   * Two founders with two children, who have a child together. A half sibling of the children shares their father.
+   */
+  private static PedigreeGraph createPedigree() {
+    return new PedigreeGraph.Builder()
+      .addParent("child", "son")
+      .addParent("child", "daughter")
+      .addParent("son", "mother")
+      .addParent("son", "father")
+      .addParent("daughter", "father")
+      .addParent("daughter", "mother")
+      .addParent("halfSibling", "father")
+      .addParent("halfSibling", "otherMother")
+      .build();
+  }
+
+  @Test
+  public void testTopologicalOrder() {
+    PedigreeGraph graph = createPedigree();
+    for (int i = 0; i < graph.size(); i++) {
+      assertTrue(graph.getParent1(i) < i);
+      assertTrue(graph.getParent2(i) < i);
+    }
+  }
+
+  @Test
+  public void testKinship() {
+    KinshipAnalyzer analyzer = new KinshipAnalyzer(createPedigree());
+    assertEquals(0.5, analyzer.kinship("mother", "mother"), DELTA);
+    assertEquals(0, analyzer.kinship("mother", "father"), DELTA);
+    assertEquals(0.25, analyzer.kinship("mother", "son"), DELTA);
+    assertEquals(0.25, analyzer.kinship("son", "daughter"), DELTA);
+    assertEquals(0.125, analyzer.kinship("son", "halfSibling"), DELTA);
+    assertEquals(0.625, analyzer.kinship("child", "child"), DELTA);
+
+    assertArrayEquals(new double[] { 0.25, 0.125 },
+      analyzer.kinship(new String[] { "daughter", "halfSibling" }, new String[] { "son", "daughter" }), DELTA);
+  }
+
+  @Test
+  public void testInbreeding() {
+    KinshipAnalyzer analyzer = new KinshipAnalyzer(createPedigree());
+    Map<String, Double> inbreeding = analyzer.inbreeding();
+    assertEquals(7, inbreeding.size());
+    assertEquals(0.25, inbreeding.get("child"), DELTA);
+    assertEquals(0, inbreeding.get("son"), DELTA);
+    assertEquals(0, inbreeding.get("halfSibling"), DELTA);
+    assertEquals(0.25, analyzer.inbreeding("child"), DELTA);
+  }
+
+  @Test
+  public void testFromBundle() throws IOException {
+    Bundle pedigree;
+    try (FileReader reader = new FileReader(ValidatorServiceTest.loadFileFromClassPath(
+      "open-pedigree-GA4GH-fhir.json"))) {
+      pedigree = FhirContext.forR4().newJsonParser().parseResource(Bundle.class, reader);
+    }
+    PedigreeGraph graph = PedigreeGraph.fromBundle(pedigree);
+    assertEquals(21, graph.size());
+
+    // The relationship code describes the relative, e.g. KIN:027 means the relative is the mother of the patient
+    int alison = graph.indexOf(ALISON);
+    assertEquals(Set.of(ALISON_MOTHER, ALISON_FATHER),
+      Set.of(graph.getId(graph.getParent1(alison)), graph.getId(graph.getParent2(alison))));
+
+    KinshipAnalyzer analyzer = new KinshipAnalyzer(graph);
+    assertEquals(0.25, analyzer.kinship(ALISON, LONLEY), DELTA);
+    assertEquals(0.125, analyzer.kinship(ALISON_MOTHER, LONLEY), DELTA);
+    assertEquals(0.25, analyzer.kinship(LONLEY, LIBBY), DELTA);
+    assertEquals(0.125, analyzer.kinship(LONLEY, HALF_SIBLING), DELTA);
+    assertEquals(0, analyzer.inbreeding(LONLEY), DELTA);
+  }
+
+  @Test
+  public void testDonorsAreBiologicalParents() {
+    Bundle pedigree = new Bundle();
+    Patient donor = addIndividual(pedigree, "donor");
+    Patient mother = addIndividual(pedigree, "mother");
+    Patient child1 = addIndividual(pedigree, "child1");
+    Patient child2 = addIndividual(pedigree, "child2");
+    Patient child3 = addIndividual(pedigree, "child3");
+    addRelationship(pedigree, child1, donor, "KIN:004"); // The donor is the sperm donor of child 1
+    addRelationship(pedigree, child1, mother, "KIN:027");
+    addRelationship(pedigree, donor, child2, "KIN:044"); // Child 2 has the donor as sperm donor
+    addRelationship(pedigree, mother, child2, "KIN:042");
+    addRelationship(pedigree, child3, mother, "KIN:038");
+
+    PedigreeGraph graph = PedigreeGraph.fromBundle(pedigree);
+    int child2Index = graph.indexOf("child2");
+    assertEquals(Set.of("donor", "mother"),
+      Set.of(graph.getId(graph.getParent1(child2Index)), graph.getId(graph.getParent2(child2Index))));
+
+    KinshipAnalyzer analyzer = new KinshipAnalyzer(graph);
+    assertEquals(0.25, analyzer.kinship("child1", "child2"), DELTA);
+    assertEquals(0.125, analyzer.kinship("child1", "child3"), DELTA);
+  }
+
+  @Test
+  public void testMemo() {
+    KinshipAnalyzer.Memo memo = new KinshipAnalyzer.Memo();
+    for (int a = 0; a < 200; a++) {
+      for (int b = 0; b <= a; b++) {
+        memo.put(((long) a << 32) | b, a + b / 1000.0);
+      }
+    }
+    assertEquals(200 * 201 / 2, memo.size());
+    for (int a = 0; a < 200; a++) {
+      for (int b = 0; b <= a; b++) {
+        assertEquals(a + b / 1000.0, memo.get(((long) a << 32) | b), DELTA);
+      }
+    }
+    assertTrue(Double.isNaN(memo.get(((long) 1 << 32) | 2)));
+
+    memo.put(0, 0.5);
+    assertEquals(0.5, memo.get(0), DELTA);
+    assertEquals(200 * 201 / 2, memo.size());
+  }
+
+  @Test
+  public void testInvalidPedigrees() {
+    PedigreeGraph.Builder cycle = new PedigreeGraph.Builder()
+      .addParent("a", "b")
+      .addParent("b", "c")
+      .addParent("c", "a");
+    assertThrows(IllegalArgumentException.class, cycle::build);
+
+    PedigreeGraph.Builder tooManyParents = new PedigreeGraph.Builder()
+      .addParent("a", "b")
+      .addParent("a", "c");
+    assertThrows(IllegalArgumentException.class, () -> tooManyParents.addParent("a", "d"));
+
+    KinshipAnalyzer analyzer = new KinshipAnalyzer(createPedigree());
+    assertThrows(IllegalArgumentException.class, () -> analyzer.kinship("son", "unknown"));
+  }
+
+  private static Patient addIndividual(Bundle pedigree, String id) {
+    Patient patient = new Patient();
+    patient.getMeta().addProfile("http://purl.org/ga4gh/pedigree-fhir-ig/StructureDefinition/PedigreeIndividual");
+    patient.setId(id);
+    pedigree.addEntry().setResource(patient);
+    return patient;
+  }
+
+  private static void addRelationship(Bundle pedigree, Patient patient, Patient relative, String code) {
+    FamilyMemberHistory rel = new FamilyMemberHistory();
+    rel.getMeta().addProfile("http://purl.org/ga4gh/pedigree-fhir-ig/StructureDefinition/PedigreeRelationship");
+    rel.setPatient(new Reference(patient));
+    rel.addExtension().setUrl(ValidatorService.FH_PAT_REC_EXT).setValue(new Reference(relative));
+    rel.getRelationship().addCoding().setSystem("http://purl.org/ga4gh/kin.fhir").setCode(code);
+    pedigree.addEntry().setResource(rel);
+  }
+}
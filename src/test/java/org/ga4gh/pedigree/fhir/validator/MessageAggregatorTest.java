@@ -0,0 +1,95 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class MessageAggregatorTest {
+
+  @Test
+  public void testMessagesAreGroupedByTemplate() {
+    MessageAggregator aggregator = new MessageAggregator();
+    for (int i = 0; i < 3; i++) {
+      aggregator.add(message(ResultSeverityEnum.WARNING, "Code system 'http://example.org/" + i + "' is unknown",
+        "Bundle.entry[" + i + "]"));
+    }
+    aggregator.add(message(ResultSeverityEnum.ERROR, "Code system 'http://example.org/0' is unknown",
+      "Bundle.entry[0]"));
+    aggregator.add(message(ResultSeverityEnum.WARNING, "Patient has no name", "Bundle.entry[4]"));
+
+    List<SingleValidationMessage> messages = aggregator.getMessages();
+    assertEquals(3, messages.size());
+
+    SingleValidationMessage grouped = messages.get(0);
+    assertEquals(ResultSeverityEnum.WARNING, grouped.getSeverity());
+    assertEquals(3, MessageAggregator.getCount(grouped));
+    assertEquals("Bundle.entry[0]", grouped.getLocationString());
+    assertTrue(grouped.getMessage().startsWith("Code system 'http://example.org/0' is unknown (3 similar messages"));
+
+    // The same template with a different severity is a different group
+    assertEquals(ResultSeverityEnum.ERROR, messages.get(1).getSeverity());
+    assertEquals(1, MessageAggregator.getCount(messages.get(1)));
+
+    // Messages that are not repeated are unchanged
+    assertEquals("Patient has no name", messages.get(2).getMessage());
+    assertEquals(1, MessageAggregator.getCount(messages.get(2)));
+  }
+
+  @Test
+  public void testLocationsAreCapped() {
+    MessageAggregator aggregator = new MessageAggregator(10, 2);
+    for (int i = 0; i < 5; i++) {
+      aggregator.add(message(ResultSeverityEnum.ERROR, "Unknown code " + i, "Bundle.entry[" + i + "]"));
+    }
+
+    List<SingleValidationMessage> messages = aggregator.getMessages();
+    assertEquals(1, messages.size());
+    assertEquals(5, MessageAggregator.getCount(messages.get(0)));
+    assertEquals("Unknown code 0 (5 similar messages, e.g. at Bundle.entry[0][1,1], Bundle.entry[1][1,1] and 3 more)",
+      messages.get(0).getMessage());
+  }
+
+  @Test
+  public void testOmittedGroupsAreSummarised() {
+    MessageAggregator aggregator = new MessageAggregator(2, 5);
+    aggregator.add(message(ResultSeverityEnum.ERROR, "First", "a"));
+    aggregator.add(message(ResultSeverityEnum.ERROR, "Second", "b"));
+    aggregator.add(message(ResultSeverityEnum.ERROR, "Third", "c"));
+    aggregator.add(message(ResultSeverityEnum.ERROR, "Fourth", "d"));
+    aggregator.add(message(ResultSeverityEnum.WARNING, "Fifth", "e"));
+
+    // Messages that belong to an existing group are still counted
+    aggregator.add(message(ResultSeverityEnum.ERROR, "First", "f"));
+
+    List<SingleValidationMessage> messages = aggregator.getMessages();
+    assertEquals(4, messages.size());
+    assertEquals(2, MessageAggregator.getCount(messages.get(0)));
+    assertEquals(1, MessageAggregator.getCount(messages.get(1)));
+
+    SingleValidationMessage omittedWarnings = messages.get(2);
+    assertEquals(ResultSeverityEnum.WARNING, omittedWarnings.getSeverity());
+    assertEquals(1, MessageAggregator.getCount(omittedWarnings));
+
+    SingleValidationMessage omittedErrors = messages.get(3);
+    assertEquals(ResultSeverityEnum.ERROR, omittedErrors.getSeverity());
+    assertEquals(2, MessageAggregator.getCount(omittedErrors));
+    assertEquals("2 further message(s) were omitted because there were more than 2 different messages",
+      omittedErrors.getMessage());
+  }
+
+  private static SingleValidationMessage message(ResultSeverityEnum severity, String message, String location) {
+    SingleValidationMessage msg = new SingleValidationMessage();
+    msg.setSeverity(severity);
+    msg.setMessage(message);
+    msg.setLocationString(location);
+    msg.setLocationLine(1);
+    msg.setLocationCol(1);
+    return msg;
+  }
+}
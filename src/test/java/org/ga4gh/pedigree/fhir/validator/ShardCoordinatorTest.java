@@ -0,0 +1,177 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class ShardCoordinatorTest {
+
+  @TempDir
+  File tempDir;
+
+  @Test
+  public void testShardsAreDeterministicAndDisjoint() {
+    File base = new File(tempDir, "corpus");
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      files.add(new File(base, "family-" + i + File.separator + "pedigree.json"));
+    }
+
+    int total = 0;
+    for (int shard = 0; shard < 4; shard++) {
+      total += ShardCoordinator.selectShard(base, files, shard, 4).size();
+    }
+    assertEquals(files.size(), total);
+
+    // The assignment only depends on the path relative to the corpus folder
+    File otherMount = new File(tempDir, "mnt" + File.separator + "corpus");
+    for (File file : files) {
+      File moved = new File(otherMount, base.toPath().relativize(file.toPath()).toString());
+      assertEquals(ShardCoordinator.shardOf(base, file, 4), ShardCoordinator.shardOf(otherMount, moved, 4));
+    }
+  }
+
+  @Test
+  public void testMergeReports() throws IOException {
+    FhirContext ctx = FhirContext.forR4();
+    ShardCoordinator coordinator = new ShardCoordinator(2, tempDir);
+
+    try (ShardReport report = new ShardReport(coordinator.getReportFile(0))) {
+      report.add("a.json", new ValidationResult(ctx, Collections.emptyList()));
+      report.add("b.json", new ValidationResult(ctx, Collections.singletonList(
+        message(ResultSeverityEnum.ERROR))));
+      report.complete();
+    }
+    try (ShardReport report = new ShardReport(coordinator.getReportFile(1))) {
+      // Grouped messages count as the number of messages in their group
+      MessageAggregator aggregator = new MessageAggregator();
+      for (int i = 0; i < 3; i++) {
+        aggregator.add(message(ResultSeverityEnum.WARNING));
+      }
+      report.add("c.json", new ValidationResult(ctx, aggregator.getMessages()));
+      report.add("d.json", new ValidationResult(ctx, Collections.singletonList(
+        message(ResultSeverityEnum.FATAL))));
+      report.complete();
+    }
+
+    List<String> unsuccessful = new ArrayList<>();
+    ShardReport.Summary summary = coordinator.merge(new File(tempDir, "report.tsv"), unsuccessful::add);
+    assertEquals(4, summary.getTotal());
+    assertEquals(2, summary.getPassed());
+    assertEquals(1, summary.getFailed());
+    assertEquals(1, summary.getErrored());
+    assertEquals(3, summary.getWarnings());
+    assertEquals(2, unsuccessful.size());
+  }
+
+  @Test
+  public void testIncompleteOrInvalidReportsAreNotMerged() throws IOException {
+    FhirContext ctx = FhirContext.forR4();
+    ShardCoordinator coordinator = new ShardCoordinator(1, tempDir);
+    File merged = new File(tempDir, "report.tsv");
+
+    // The worker did not finish
+    try (ShardReport report = new ShardReport(coordinator.getReportFile(0))) {
+      report.add("a.json", new ValidationResult(ctx, Collections.emptyList()));
+    }
+    assertThrows(IOException.class, () -> coordinator.merge(merged, line -> {}));
+
+    Files.write(coordinator.getReportFile(0).toPath(), "PASSED\tmany\t0\ta.json\n#complete\n"
+      .getBytes(StandardCharsets.UTF_8));
+    assertThrows(IOException.class, () -> coordinator.merge(merged, line -> {}));
+
+    Files.write(coordinator.getReportFile(0).toPath(), "UNKNOWN\t0\t0\ta.json\n#complete\n"
+      .getBytes(StandardCharsets.UTF_8));
+    assertThrows(IOException.class, () -> coordinator.merge(merged, line -> {}));
+  }
+
+  @Test
+  public void testRunLocalWorkers() throws IOException, InterruptedException {
+    File corpus = createCorpus();
+    File reportDir = new File(tempDir, "reports");
+    ShardCoordinator coordinator = new ShardCoordinator(2, reportDir);
+    coordinator.runLocalWorkers(Arrays.asList("-j", "1", corpus.getAbsolutePath()));
+
+    List<String> unsuccessful = new ArrayList<>();
+    ShardReport.Summary summary = coordinator.merge(new File(reportDir, "report.tsv"), unsuccessful::add);
+    assertEquals(4, summary.getTotal());
+    assertEquals(3, summary.getPassed());
+    assertEquals(1, summary.getErrored());
+    assertEquals(1, unsuccessful.size());
+
+    // Workers that fail before writing their reports must not leave the reports of the previous run behind
+    coordinator.runLocalWorkers(Arrays.asList("--unknownOption", corpus.getAbsolutePath()));
+    assertThrows(IOException.class, () -> coordinator.merge(new File(reportDir, "report.tsv"), line -> {}));
+  }
+
+  @Test
+  public void testRerunWithJournalReportsSkippedFiles() throws IOException, InterruptedException {
+    File corpus = createCorpus();
+    File journal = new File(tempDir, "journal.tsv");
+    File reportDir = new File(tempDir, "reports");
+    ShardCoordinator coordinator = new ShardCoordinator(2, reportDir);
+    List<String> workerArgs = Arrays.asList("-j", "1", "--journal", journal.getAbsolutePath(),
+      corpus.getAbsolutePath());
+
+    coordinator.runLocalWorkers(workerArgs);
+    ShardReport.Summary first = coordinator.merge(new File(reportDir, "report.tsv"), line -> {});
+    assertEquals(4, countJournalEntries(journal));
+
+    // Only the file that did not pass is validated again, but the skipped files are still reported
+    coordinator.runLocalWorkers(workerArgs);
+    ShardReport.Summary second = coordinator.merge(new File(reportDir, "report.tsv"), line -> {});
+    assertEquals(5, countJournalEntries(journal));
+    assertEquals(4, second.getTotal());
+    assertEquals(first.getTotal(), second.getTotal());
+    assertEquals(first.getPassed(), second.getPassed());
+    assertEquals(first.getErrored(), second.getErrored());
+    assertEquals(first.getWarnings(), second.getWarnings());
+  }
+
+  private File createCorpus() throws IOException {
+    File corpus = new File(tempDir, "corpus");
+    File pedigree = ValidatorServiceTest.loadFileFromClassPath("open-pedigree-GA4GH-fhir.json");
+    for (int i = 0; i < 3; i++) {
+      File family = new File(corpus, "family-" + i);
+      Files.createDirectories(family.toPath());
+      Files.copy(pedigree.toPath(), new File(family, "pedigree.json").toPath());
+    }
+    Files.write(new File(corpus, "patient.json").toPath(),
+      "{\"resourceType\": \"Patient\"}".getBytes(StandardCharsets.UTF_8));
+    return corpus;
+  }
+
+  private static int countJournalEntries(File journal) throws IOException {
+    int entries = 0;
+    for (int shard = 0; shard < 2; shard++) {
+      File shardJournal = ShardCoordinator.getShardFile(journal, shard, 2);
+      if (shardJournal.exists()) {
+        entries += Files.readAllLines(shardJournal.toPath(), StandardCharsets.UTF_8).size();
+      }
+    }
+    return entries;
+  }
+
+  private SingleValidationMessage message(ResultSeverityEnum severity) {
+    SingleValidationMessage msg = new SingleValidationMessage();
+    msg.setMessage("Test message");
+    msg.setSeverity(severity);
+    return msg;
+  }
+}
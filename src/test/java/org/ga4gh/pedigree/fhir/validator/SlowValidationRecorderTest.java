@@ -0,0 +1,91 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class SlowValidationRecorderTest {
+
+  private static final FhirContext ctx = FhirContext.forR4();
+
+  @TempDir
+  File tempDir;
+
+  @Test
+  public void testSlowValidationsAreDumped() throws IOException {
+    ValidatorService validator = new ValidatorService(false, null);
+    File file = ValidatorServiceTest.loadFileFromClassPath("open-pedigree-GA4GH-fhir.json");
+    try (SlowValidationRecorder recorder = new SlowValidationRecorder(0, tempDir)) {
+      validator.setSlowValidationRecorder(recorder);
+      validator.validate(file);
+    }
+
+    File[] dumps = Objects.requireNonNull(tempDir.listFiles());
+    assertEquals(2, dumps.length);
+    for (File dump : dumps) {
+      assertTrue(dump.getName().startsWith("open-pedigree-GA4GH-fhir.json-"));
+      assertTrue(dump.length() > 0);
+    }
+  }
+
+  @Test
+  public void testDumpLimits() {
+    Bundle pedigree = new Bundle();
+    try (SlowValidationRecorder recorder = new SlowValidationRecorder(100, tempDir, 0, 2)) {
+      assertFalse(recorder.check("fast.json", TimeUnit.MILLISECONDS.toNanos(50), pedigree, ctx));
+      assertEquals(0, Objects.requireNonNull(tempDir.listFiles()).length);
+
+      assertTrue(recorder.check("slow.json", TimeUnit.MILLISECONDS.toNanos(200), pedigree, ctx));
+      assertTrue(recorder.check("slow.json", TimeUnit.MILLISECONDS.toNanos(200), pedigree, ctx));
+      assertFalse(recorder.check("slow.json", TimeUnit.MILLISECONDS.toNanos(200), pedigree, ctx));
+    }
+
+    File otherDir = new File(tempDir, "other");
+    try (SlowValidationRecorder recorder = new SlowValidationRecorder(100, otherDir, 60_000, 20)) {
+      assertTrue(recorder.check("slow.json", TimeUnit.MILLISECONDS.toNanos(200), pedigree, ctx));
+      assertFalse(recorder.check("slow.json", TimeUnit.MILLISECONDS.toNanos(200), pedigree, ctx));
+    }
+    assertEquals(2, Objects.requireNonNull(otherDir.listFiles()).length);
+  }
+
+  @Test
+  public void testValidationPhaseEvents() throws IOException {
+    ValidatorService validator = new ValidatorService(false, null);
+    File file = ValidatorServiceTest.loadFileFromClassPath("open-pedigree-GA4GH-fhir.json");
+    File recordingFile = new File(tempDir, "events.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable(ValidationPhaseEvent.class);
+      recording.start();
+      validator.validate(file);
+      recording.stop();
+      recording.dump(recordingFile.toPath());
+    }
+
+    Set<String> phases = new HashSet<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+      if (event.getEventType().getName().equals("org.ga4gh.pedigree.ValidationPhase")
+        && file.getName().equals(event.getString("fileName"))) {
+        phases.add(event.getString("phase"));
+        assertTrue(event.getInt("entries") > 0);
+      }
+    }
+    assertTrue(phases.contains(ValidationPhaseEvent.PARSE));
+    assertTrue(phases.contains(ValidationPhaseEvent.INSTANCE_VALIDATION));
+  }
+}
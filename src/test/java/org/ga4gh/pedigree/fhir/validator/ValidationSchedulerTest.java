@@ -0,0 +1,179 @@
+package org.ga4gh.pedigree.fhir.validator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class ValidationSchedulerTest {
+
+  private static final long MB = 1024 * 1024;
+
+  private static final FhirContext ctx = FhirContext.forR4();
+
+  @TempDir
+  File tempDir;
+
+  @Test
+  public void testEstimateCost() throws InterruptedException {
+    try (ValidationScheduler scheduler = new ValidationScheduler(false, null, 1, 64 * MB)) {
+      assertEquals(1000 * ValidationScheduler.HEAP_BYTES_PER_JSON_BYTE + 2 * ValidationScheduler.HEAP_BYTES_PER_ENTRY,
+        scheduler.estimateCost(1000, 2));
+    }
+    try (ValidationScheduler scheduler = new ValidationScheduler(true, null, 1, 64 * MB)) {
+      assertEquals(1000 * ValidationScheduler.HEAP_BYTES_PER_JSON_BYTE + 2 * ValidationScheduler.HEAP_BYTES_PER_ENTRY
+        + 2 * ValidationScheduler.REASONER_HEAP_BYTES_PER_ENTRY, scheduler.estimateCost(1000, 2));
+    }
+
+    assertEquals(1, ValidationScheduler.estimateEntries(0));
+    assertEquals(10, ValidationScheduler.estimateEntries(10 * ValidationScheduler.JSON_BYTES_PER_ENTRY));
+    assertEquals(2, ValidationScheduler.countEntries("{\"resourceType\": \"Bundle\", \"entry\": "
+      + "[{\"resource\": {\"resourceType\": \"Patient\"}}]}"));
+  }
+
+  @Test
+  public void testOversizedPedigreesAreValidatedInSerialLane() throws InterruptedException {
+    Map<String, String> threads = new ConcurrentHashMap<>();
+    try (ValidationScheduler scheduler = new ValidationScheduler(false, null, 2, 4 * MB)) {
+      // Pedigrees that need more than the budget divided by the number of threads are oversized
+      scheduler.schedule("small", MB, s -> record(threads, "small"), vr -> {});
+      scheduler.schedule("big1", 3 * MB, s -> record(threads, "big1"), vr -> {});
+      scheduler.schedule("big2", 3 * MB, s -> record(threads, "big2"), vr -> {});
+      scheduler.awaitCompletion();
+    }
+
+    assertEquals(3, threads.size());
+    assertEquals(threads.get("big1"), threads.get("big2"));
+    assertNotEquals(threads.get("small"), threads.get("big1"));
+  }
+
+  @Test
+  public void testSmallFilesAreValidatedWhileOversizedFileRuns() throws InterruptedException {
+    try (ValidationScheduler scheduler = new ValidationScheduler(false, null, 2, 4 * MB)) {
+      CountDownLatch bigStarted = new CountDownLatch(1);
+      CountDownLatch releaseBig = new CountDownLatch(1);
+      CountDownLatch bigDone = new CountDownLatch(1);
+      scheduler.schedule("big", 4 * MB, s -> {
+        bigStarted.countDown();
+        await(releaseBig);
+        return success();
+      }, vr -> bigDone.countDown());
+      assertTrue(bigStarted.await(30, TimeUnit.SECONDS));
+
+      // Small files submitted after the oversized one are admitted and completed while it is still running
+      CountDownLatch smallDone = new CountDownLatch(4);
+      for (int i = 0; i < 4; i++) {
+        scheduler.schedule("small " + i, MB / 2, s -> success(), vr -> smallDone.countDown());
+      }
+      assertTrue(smallDone.await(30, TimeUnit.SECONDS));
+      assertEquals(1, bigDone.getCount());
+
+      releaseBig.countDown();
+      assertTrue(bigDone.await(30, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testAdmissionWaitsForHeapBudget() throws InterruptedException {
+    // Half of the budget is reserved for the serial lane
+    try (ValidationScheduler scheduler = new ValidationScheduler(false, null, 4, 8 * MB)) {
+      CountDownLatch started = new CountDownLatch(4);
+      CountDownLatch release = new CountDownLatch(1);
+      for (int i = 0; i < 4; i++) {
+        scheduler.schedule("file " + i, MB, s -> {
+          started.countDown();
+          await(release);
+          return success();
+        }, vr -> {});
+      }
+      assertTrue(started.await(30, TimeUnit.SECONDS));
+
+      // The whole budget is in use, so the next pedigree is not admitted until another one completes
+      CountDownLatch admitted = new CountDownLatch(1);
+      Thread submitter = new Thread(() -> {
+        try {
+          scheduler.schedule("waiting", MB, s -> success(), vr -> {});
+          admitted.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      submitter.start();
+      assertFalse(admitted.await(500, TimeUnit.MILLISECONDS));
+
+      release.countDown();
+      assertTrue(admitted.await(30, TimeUnit.SECONDS));
+      submitter.join();
+    }
+  }
+
+  @Test
+  public void testNdjson() throws IOException, InterruptedException {
+    IBaseResource pedigree;
+    try (FileReader reader = new FileReader(ValidatorServiceTest.loadFileFromClassPath(
+      "open-pedigree-GA4GH-fhir.json"))) {
+      pedigree = ctx.newJsonParser().parseResource(reader);
+    }
+    File file = new File(tempDir, "pedigrees.ndjson");
+    String content = ctx.newJsonParser().encodeResourceToString(pedigree) + "\n"
+      + "  \n"
+      + "{\"resourceType\": \"Patient\", \"id\": \"p1\"}\n"
+      + "{\"resourceType\": \"Bundle\"\n";
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+    Map<String, ValidationResult> results = new ConcurrentHashMap<>();
+    try (ValidationScheduler scheduler = new ValidationScheduler(false, null, 2, 0)) {
+      scheduler.submitNdjson(file, results::put);
+      scheduler.awaitCompletion();
+    }
+
+    // Results are named after the line of each pedigree, and blank lines are skipped
+    assertEquals(3, results.size());
+    assertTrue(results.get(file.getPath() + ":1").isSuccessful());
+
+    ValidationResult patient = results.get(file.getPath() + ":3");
+    assertFalse(patient.isSuccessful());
+    assertEquals(ResultSeverityEnum.FATAL, patient.getMessages().get(0).getSeverity());
+    assertTrue(patient.getMessages().get(0).getMessage().contains("does not seem to contain a pedigree"));
+
+    ValidationResult invalid = results.get(file.getPath() + ":4");
+    assertFalse(invalid.isSuccessful());
+    assertEquals(ResultSeverityEnum.FATAL, invalid.getMessages().get(0).getSeverity());
+  }
+
+  private static ValidationResult record(Map<String, String> threads, String name) {
+    threads.put(name, Thread.currentThread().getName());
+    return success();
+  }
+
+  private static ValidationResult success() {
+    return new ValidationResult(ctx, Collections.emptyList());
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.ga4gh.pedigree.fhir.validator;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
 import ca.uhn.fhir.validation.SingleValidationMessage;
 import ca.uhn.fhir.validation.ValidationResult;
 import org.apache.commons.logging.Log;
@@ -13,7 +14,10 @@ import java.io.IOException;
 import java.util.Calendar;
 import java.util.Objects;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -25,7 +29,91 @@ public class ValidatorServiceTest {
   public void testValidPedigree() {
     log.info("Running testValidPedigree");
     ValidatorService validator = new ValidatorService(false, null);
+    Bundle pedigree = createValidPedigree();
 
+    ValidationResult res = validator.validate(pedigree);
+    for (SingleValidationMessage message : res.getMessages()) {
+      System.out.println(message.toString());
+    }
+
+    assertTrue(res.isSuccessful());
+  }
+
+  @Test
+  public void testConsistentPedigreeAfterInconsistentPedigree() {
+    log.info("Running testConsistentPedigreeAfterInconsistentPedigree");
+    ValidatorService validator = new ValidatorService(true, null);
+
+    // The axioms of the first pedigree must not be left behind in the reasoner
+    ValidationResult res = validator.validate(createPedigreeWithCycle());
+    assertFalse(res.isSuccessful());
+
+    res = validator.validate(createValidPedigree());
+    for (SingleValidationMessage message : res.getMessages()) {
+      System.out.println(message.toString());
+    }
+    assertTrue(res.isSuccessful());
+  }
+
+  @Test
+  public void testValidPedigreeFromString() {
+    log.info("Running testValidPedigreeFromString");
+    ValidatorService validator = new ValidatorService(false, null);
+    FhirContext ctx = validator.getFhirContext();
+
+    String json = ctx.newJsonParser().encodeResourceToString(createValidPedigree());
+    ValidationResult res = validator.validate(json, "pedigrees.ndjson:1");
+    for (SingleValidationMessage message : res.getMessages()) {
+      System.out.println(message.toString());
+    }
+    assertTrue(res.isSuccessful());
+
+    res = validator.validate("{\"resourceType\": \"Patient\", \"id\": \"p1\"}", "pedigrees.ndjson:2");
+    assertFalse(res.isSuccessful());
+    assertTrue(res.getMessages().get(0).getMessage().startsWith("pedigrees.ndjson:2 does not seem to contain"));
+  }
+
+  @Test
+  public void testRegisteredIgVersion() {
+    log.info("Running testRegisteredIgVersion");
+    ValidatorService validator = new ValidatorService(false, null);
+    Bundle pedigree = createValidPedigree();
+    pedigree.getMeta().getProfile().clear();
+    String profile = "http://purl.org/ga4gh/pedigree-fhir-ig/StructureDefinition/Pedigree|"
+      + ValidatorService.BUNDLED_IG_VERSION;
+    pedigree.getMeta().addProfile(profile);
+
+    ValidationResult res = validator.validate(pedigree);
+    for (SingleValidationMessage message : res.getMessages()) {
+      System.out.println(message.toString());
+    }
+    assertTrue(res.isSuccessful());
+    assertTrue(res.getMessages().stream().noneMatch(m -> m.getMessage().contains("of the Pedigree IG")));
+
+    // The profile is only changed while the pedigree is validated
+    assertEquals(profile, pedigree.getMeta().getProfile().get(0).getValue());
+  }
+
+  @Test
+  public void testUnregisteredIgVersion() {
+    log.info("Running testUnregisteredIgVersion");
+    ValidatorService validator = new ValidatorService(false, null);
+    Bundle pedigree = createValidPedigree();
+    pedigree.getMeta().getProfile().clear();
+    pedigree.getMeta().addProfile("http://purl.org/ga4gh/pedigree-fhir-ig/StructureDefinition/Pedigree|2.0.0");
+
+    // The pedigree is validated against the profile of the default version, so it passes with a warning
+    ValidationResult res = validator.validate(pedigree);
+    for (SingleValidationMessage message : res.getMessages()) {
+      System.out.println(message.toString());
+    }
+    assertTrue(res.isSuccessful());
+    assertTrue(res.getMessages().stream().anyMatch(m -> m.getSeverity() == ResultSeverityEnum.WARNING
+      && m.getMessage().contains("version 2.0.0")
+      && m.getMessage().contains("version " + ValidatorService.BUNDLED_IG_VERSION)));
+  }
+
+  private Bundle createValidPedigree() {
     Bundle pedigree = new Bundle();
     pedigree.getMeta().addProfile("http://purl.org/ga4gh/pedigree-fhir-ig/StructureDefinition/Pedigree");
     pedigree.setType(Bundle.BundleType.DOCUMENT);
@@ -125,13 +213,7 @@ public class ValidatorServiceTest {
     pedigree.addEntry().setResource(homer).setFullUrl("http://purl.org/ga4gh/pedigree-fhir-ig/test/homer");
     pedigree.addEntry().setResource(rel).setFullUrl("http://purl.org/ga4gh/pedigree-fhir-ig/test/rel");
     pedigree.addEntry().setResource(adhd).setFullUrl("http://purl.org/ga4gh/pedigree-fhir-ig/test/adhd");
-
-    ValidationResult res = validator.validate(pedigree);
-    for (SingleValidationMessage message : res.getMessages()) {
-      System.out.println(message.toString());
-    }
-
-    assertTrue(res.isSuccessful());
+    return pedigree;
   }
 
   @Test
@@ -180,6 +262,23 @@ public class ValidatorServiceTest {
     assertTrue(res.isSuccessful());
   }
 
+  @Test
+  public void testValidateAndParse() throws IOException {
+    log.info("Running testValidateAndParse");
+    ValidatorService validator = new ValidatorService(false, null);
+
+    ValidatedPedigree res = validator.validateAndParse(loadFileFromClassPath("open-pedigree-GA4GH-fhir.json"));
+    assertTrue(res.isSuccessful());
+    assertNotNull(res.getPedigree());
+    assertEquals(21, res.getKinshipAnalyzer().getGraph().size());
+
+    res = validator.validateAndParse("{\"resourceType\": \"Patient\", \"id\": \"p1\"}", "patient.json");
+    assertFalse(res.isSuccessful());
+    assertFalse(res.getResult().isSuccessful());
+    assertNull(res.getPedigree());
+    assertNull(res.getKinshipAnalyzer());
+  }
+
   public static File loadFileFromClassPath(String name) {
     ClassLoader classLoader = ValidatorServiceTest.class.getClassLoader();
     return new File(Objects.requireNonNull(classLoader.getResource(name)).getFile());